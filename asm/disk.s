@@ -1,6 +1,6 @@
 .define MMIO_BASE       0xF8000000
-.define UART_DEVICE     #MMIO_BASE + 32 
-.define DISK_DEVICE     #MMIO_BASE + 64 
+.define UART_DEVICE     #MMIO_BASE + 0x1000
+.define DISK_DEVICE     #MMIO_BASE + 0x3000
 .define BALLS 0x7B
 
 ; UART
@@ -1,6 +1,6 @@
 .define MMIO_BASE       0xF8000000
-.define TIMER_DEVICE    #MMIO_BASE + 0
-.define UART_DEVICE     #MMIO_BASE + 32
+.define TIMER_DEVICE    #MMIO_BASE + 0x4000
+.define UART_DEVICE     #MMIO_BASE + 0x1000
 
 ; UART
 .define UART_TX_READY   #UART_DEVICE + 0x8
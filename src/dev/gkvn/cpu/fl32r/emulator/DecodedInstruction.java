@@ -0,0 +1,35 @@
+package dev.gkvn.cpu.fl32r.emulator;
+
+import static dev.gkvn.cpu.fl32r.emulator.FL32RConstants.*;
+
+/**
+ * An instruction word with every field already pulled out, so the execute stage 
+ * never has to touch the raw bits again.
+ * 
+ * The immediate is extracted (and sign-extended) according to the format of the 
+ * opcode: imm16 for U-TYPE, imm14 for M-TYPE, imm19 for I-TYPE and imm24 for J-TYPE.
+ * Instructions without an immediate get 0.
+ */
+record DecodedInstruction(byte opcode, int rOp0, int rOp1, int rOp2, int imm, int cost) {
+	
+	static DecodedInstruction decode(int instruction) {
+		byte opcode = (byte) ((instruction >>> 24) & 0xFF); // 8 MSB
+		int operand = instruction & 0xFFFFFF;
+		// register operand could be interpreted differently
+		int rOp0 = (operand >> 19) & 0b11111;
+		int rOp1 = (operand >> 14) & 0b11111;
+		int rOp2 = (operand >> 9) & 0b11111;
+		int imm = switch (opcode) {
+			// U-TYPE
+			case LUI, LLI -> (operand >> 3) & 0xFFFF;
+			// M-TYPE
+			case LDW, LDB, STW, STB -> Utils.convertImm14ToInt(operand & 0x3FFF);
+			// I-TYPE
+			case ADDI, ANDI, ORI, XORI, SHLI, SRAI, SHRI, CMPI -> Utils.convertImm19ToInt(operand);
+			// J-TYPE
+			case JMP, JEQ, JNE, JLT, JGT, JLE, JGE, JOF, JNO, CALL, INT -> Utils.convertImm24ToInt(operand);
+			default -> 0;
+		};
+		return new DecodedInstruction(opcode, rOp0, rOp1, rOp2, imm, FL32RCycleTable.COST_TABLE[opcode & 0xFF]);
+	}
+}
@@ -0,0 +1,1022 @@
+package dev.gkvn.cpu.fl32r.emulator;
+
+import static dev.gkvn.cpu.fl32r.emulator.FL32RConstants.*;
+
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Translates a basic block of decoded instructions into a hidden class, a single method
+ * the JVM then compiles like any other code:
+ * - the guest registers a block uses live in JVM locals, loaded on first use and written back
+ *   only when the block calls out or ends
+ * - the flags of an ADD/SUB-like instruction are never written if the block overwrites them,
+ *   a conditional jump at the end tests the last result right away
+ * - the cycles are retired once per call out / block end, not per instruction
+ * - a block jumping back to its own start (the usual firmware loop) loops in the method, the
+ *   registers staying in the locals, for as long as the CPU loop has nothing else to do
+ *
+ * Loads/stores hitting plain RAM are inlined, they can not fault. The other accesses (MMIO, ROM,
+ * faults), the stack and everything not worth inlining (privileged instructions, DIV...) call back
+ * into the emulator, after the guest state (registers, flags, PC, retired cycles) has been brought
+ * to what the interpreter would have at that point, so a fault raised there enters the trap
+ * the same way. After such a call the block checks it may go on: no jump/reset, not halted
+ * and not written over (self-modifying code).
+ *
+ * Blocks end at the flow controls (JMP, Jcc, CALL, CLR, JR, RET, INT, HLT, HLR, KILL),
+ * at anything changing the memory window or the interrupt mask, at writes to PC or
+ * the HLP registers, and at the end of the page.
+ */
+final class FL32RBlockCompiler {
+	static final int MAX_LENGTH = 64; // instructions, bounds how late device events/IRQs get serviced
+	static final int COMPILE_THRESHOLD = 500; // entries before compiling, code running a few times stays interpreted
+	private static final int MAX_BYTECODE = 7000; // exits included, HotSpot does not JIT methods over 8000 bytes
+
+	private static final String PACKAGE = FL32REmulator.class.getPackageName().replace('.', '/');
+	private static final String BLOCK_CLASS = PACKAGE + "/FL32RBlock"; // the JVM makes every hidden class name unique
+	private static final String EMULATOR = internalName(FL32REmulator.class);
+	private static final String DECODED = internalName(DecodedInstruction.class);
+	private static final String CODE = internalName(FL32RCompiledBlock.Code.class);
+	private static final String UTILS = internalName(Utils.class);
+	private static final String RUN_DESCRIPTOR = "(L" + EMULATOR + ";[I[L" + DECODED + ";)V";
+
+	private final MethodHandles.Lookup lookup;
+
+	/**
+	 * @param lookup a full privilege lookup of {@link FL32REmulator}, the blocks are defined next to it
+	 */
+	FL32RBlockCompiler(MethodHandles.Lookup lookup) {
+		this.lookup = lookup;
+	}
+
+	/**
+	 * @param ops the block, up to (and including) the first instruction {@link #endsBlock(DecodedInstruction)}
+	 * @param page the decode cache page the instructions come from
+	 */
+	FL32RCompiledBlock compile(int startAddress, DecodedInstruction[] ops, FL32RDecodeCache.Page page) {
+		Translator translator = new Translator(startAddress, ops);
+		byte[] classFile = translator.translate();
+		try {
+			Class<?> block = this.lookup.defineHiddenClass(classFile, true).lookupClass();
+			FL32RCompiledBlock.Code code = (FL32RCompiledBlock.Code) block.getDeclaredConstructor().newInstance();
+			return new FL32RCompiledBlock(startAddress, Arrays.copyOf(ops, translator.length), page, code);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(String.format("Could not define the block at 0x%08X", startAddress), e);
+		}
+	}
+
+	/**
+	 * @return true if the block must end after this instruction: control flows, a change of how
+	 * the next instructions are fetched (privilege, memory window) or of the interrupt mask
+	 * (an IRQ pending is taken right after STI)
+	 */
+	static boolean endsBlock(DecodedInstruction instruction) {
+		if (writesRegister(instruction.opcode())) {
+			// writing PC is a jump, the HLP registers include the memory window
+			return instruction.rOp0() >= REG_PROGRAM_COUNTER;
+		}
+		return switch (instruction.opcode()) {
+			case NOP, STW, STB, CMP, CMPI, PUSH, STFS -> false;
+			// flow controls, HLR, MWO/MWB/MWST, STI/CLI, HLT, KILL and the unknown opcodes (faults)
+			default -> true;
+		};
+	}
+
+	// the instructions with a result going to rOp0
+	private static boolean writesRegister(byte opcode) {
+		return switch (opcode) {
+			case MOV, LUI, LLI, LDW, LDB,
+				ADD, SUB, MUL, UMUL, DIV, UDIV, MOD, UMOD, AND, OR, XOR, SHL, SHR, SRA, NOT,
+				ADDI, ORI, XORI, ANDI, SHLI, SRAI, SHRI, POP, LIFR, LIPR -> true;
+			default -> false;
+		};
+	}
+
+	private static String internalName(Class<?> type) {
+		return type.getName().replace('.', '/');
+	}
+
+	/**
+	 * One block to one class file: a public no-arg constructor and
+	 * {@link FL32RCompiledBlock.Code#run(FL32REmulator, int[], DecodedInstruction[])}.
+	 */
+	private static final class Translator {
+		// the reference locals of run(), the int ones (cached registers, flags operands) follow
+		private static final int THIS = 0, EMU = 1, REGISTERS = 2, OPS = 3;
+		// state of a cached register
+		private static final int NOT_LOADED = 0, CLEAN = 1, DIRTY = 2;
+		private static final int MAX_STACK = 8;
+		private static final int EXIT_SIZE = 6 * REG_PROGRAM_COUNTER + 64; // all the registers written back, plus the rest
+
+		private final int startAddress;
+		private final DecodedInstruction[] ops;
+		private final ConstantPool pool = new ConstantPool();
+		private final Bytecode code = new Bytecode(this.pool);
+		private final List<Runnable> exits = new ArrayList<>(); // emitted after the block's code
+		private int exitsSize; // upper bound of their bytecode
+
+		// R0-R23 and SP (REG_ZERO and PC are constants), -1 when the block never names the register
+		private final int[] local = new int[REG_PROGRAM_COUNTER];
+		private final int[] state = new int[REG_PROGRAM_COUNTER];
+		// the block ends jumping back to its own start, it then loops in the method (see loop())
+		private final boolean loops;
+		private final boolean[] written = new boolean[REG_PROGRAM_COUNTER];
+		private final Bytecode.Label top;
+		private final int flagsLeft, flagsRight, flagsResult, temp, address, intLocals;
+		private int pendingFlags = FL32REmulator.FLAGS_RESOLVED; // deferred flags not handed to the emulator yet
+		private int knownFlags = FL32REmulator.FLAGS_RESOLVED; // the flags locals hold the last deferred flags
+		private int pendingCycles; // of the instructions run since the last retire()
+		private int nextPC; // PC as the interpreter has it while executing the current instruction
+		int length; // instructions translated, the block may be cut short
+
+		Translator(int startAddress, DecodedInstruction[] ops) {
+			this.startAddress = startAddress;
+			this.ops = ops;
+			Arrays.fill(this.local, -1);
+			int next = OPS + 1;
+			for (DecodedInstruction op : ops) {
+				for (int r : new int[] { op.rOp0(), op.rOp1(), op.rOp2() }) {
+					if (r < REG_PROGRAM_COUNTER && r != REG_ZERO && this.local[r] < 0) {
+						this.local[r] = next++;
+					}
+				}
+				if (writesRegister(op.opcode()) && op.rOp0() < REG_PROGRAM_COUNTER) {
+					this.written[op.rOp0()] = true;
+				}
+			}
+			DecodedInstruction last = ops[ops.length - 1];
+			this.loops = (last.opcode() == JMP || isConditionalJump(last.opcode()))
+				&& startAddress + ops.length * WORD_SIZE + last.imm() == startAddress;
+			this.top = this.loops ? this.code.newLabel() : null;
+			this.flagsLeft = next++;
+			this.flagsRight = next++;
+			this.flagsResult = next++;
+			this.temp = next++;
+			this.address = next++;
+			this.intLocals = next - (OPS + 1);
+		}
+
+		byte[] translate() {
+			// every int local is set before the first branch, so all the frames are the same
+			for (int i = OPS + 1; i < OPS + 1 + this.intLocals; i++) {
+				this.code.pushInt(0);
+				this.code.local(Jvm.ISTORE, i);
+			}
+			if (this.loops) {
+				// every iteration finds all the registers in their locals, the ones the block writes maybe dirty
+				for (int r = 0; r < REG_PROGRAM_COUNTER; r++) {
+					if (this.local[r] >= 0) {
+						this.reload(r);
+						this.state[r] = this.written[r] ? DIRTY : CLEAN;
+					}
+				}
+				this.code.bind(this.top);
+			}
+			boolean ended = false;
+			while (!ended && this.length < this.ops.length && this.code.size + this.exitsSize < MAX_BYTECODE) {
+				this.nextPC = this.startAddress + (this.length + 1) * WORD_SIZE;
+				ended = this.translate(this.length, this.ops[this.length]);
+				this.length++;
+			}
+			if (!ended) {
+				this.commit(this.startAddress + this.length * WORD_SIZE); // falls through to the next block
+				this.code.u1(Jvm.RETURN);
+			}
+			this.exits.forEach(Runnable::run);
+			return this.classFile();
+		}
+
+		/**
+		 * @return true if the instruction ended the block
+		 */
+		private boolean translate(int index, DecodedInstruction op) {
+			int r0 = op.rOp0(), r1 = op.rOp1(), r2 = op.rOp2(), imm = op.imm();
+			switch (op.opcode()) {
+				case NOP -> {}
+				case MOV -> {
+					if (!writable(r0) || !readable(r1)) return this.callExecute(index, op);
+					this.load(r1);
+					this.store(r0);
+				}
+				case LUI -> {
+					if (!writable(r0)) return this.callExecute(index, op);
+					this.code.pushInt(imm << 16);
+					this.store(r0);
+				}
+				case LLI -> {
+					if (!writable(r0)) return this.callExecute(index, op);
+					this.load(r0);
+					this.code.pushInt(0xFFFF0000);
+					this.code.u1(Jvm.IAND);
+					this.code.pushInt(imm);
+					this.code.u1(Jvm.IOR);
+					this.store(r0);
+				}
+				case LDW, LDB -> {
+					if (!writable(r0) || !readable(r1)) return this.callExecute(index, op);
+					this.memoryAccess(op, false);
+				}
+				case STW, STB -> {
+					if (!readable(r0) || !readable(r1)) return this.callExecute(index, op);
+					this.memoryAccess(op, true);
+				}
+				case PUSH -> {
+					if (!readable(r0)) return this.callExecute(index, op);
+					this.commit(this.nextPC);
+					this.code.local(Jvm.ALOAD, EMU);
+					this.load(r0);
+					this.invokeEmulator("pushToStack", "(I)V");
+					this.forget(REG_STACK_POINTER);
+					return this.checkContinue(op);
+				}
+				case POP -> {
+					if (!writable(r0)) return this.callExecute(index, op);
+					this.commit(this.nextPC);
+					this.code.local(Jvm.ALOAD, EMU);
+					this.invokeEmulator("popFromStack", "()I");
+					this.forget(REG_STACK_POINTER);
+					this.store(r0);
+					return this.checkContinue(op);
+				}
+				case ADD, SUB -> {
+					if (!writable(r0) || !readable(r1) || !readable(r2)) return this.callExecute(index, op);
+					this.load(r1);
+					this.code.local(Jvm.ISTORE, this.flagsLeft);
+					this.load(r2);
+					this.code.local(Jvm.ISTORE, this.flagsRight);
+					this.deferFlags(op.opcode() == ADD ? FL32REmulator.FLAGS_ADD : FL32REmulator.FLAGS_SUB, r0);
+				}
+				case MUL, UMUL -> { // the low 32 bits of the product do not depend on the signedness
+					if (!writable(r0) || !readable(r1) || !readable(r2)) return this.callExecute(index, op);
+					this.load(r1);
+					this.load(r2);
+					this.code.u1(Jvm.IMUL);
+					this.resolveFlags(r0, "setZeroNegativeFlags");
+				}
+				case AND, OR, XOR, SHL, SHR, SRA, NOT -> {
+					if (!writable(r0) || !readable(r1) || !readable(r2)) return this.callExecute(index, op);
+					this.load(r1);
+					if (op.opcode() == NOT) {
+						this.code.pushInt(-1);
+						this.code.u1(Jvm.IXOR);
+					} else {
+						this.load(r2);
+						this.code.u1(switch (op.opcode()) {
+							case AND -> Jvm.IAND;
+							case OR -> Jvm.IOR;
+							case XOR -> Jvm.IXOR;
+							case SHL -> Jvm.ISHL;
+							case SHR -> Jvm.IUSHR;
+							default -> Jvm.ISHR;
+						});
+					}
+					this.resolveFlags(r0, "setZeroFlag");
+				}
+				case ADDI -> {
+					if (!writable(r0)) return this.callExecute(index, op);
+					this.load(r0);
+					this.code.local(Jvm.ISTORE, this.flagsLeft);
+					this.code.pushInt(imm);
+					this.code.local(Jvm.ISTORE, this.flagsRight);
+					this.deferFlags(FL32REmulator.FLAGS_ADD, r0);
+				}
+				case ANDI, ORI, XORI, SHLI, SHRI, SRAI -> {
+					if (!writable(r0)) return this.callExecute(index, op);
+					this.load(r0);
+					switch (op.opcode()) {
+						case ANDI -> { this.code.pushInt(imm); this.code.u1(Jvm.IAND); }
+						case ORI -> { this.code.pushInt(imm); this.code.u1(Jvm.IOR); }
+						case XORI -> { this.code.pushInt(imm); this.code.u1(Jvm.IXOR); }
+						case SHLI -> { this.code.pushInt(imm & 0b11111); this.code.u1(Jvm.ISHL); }
+						case SHRI -> { this.code.pushInt(imm & 0b11111); this.code.u1(Jvm.IUSHR); }
+						default -> { this.code.pushInt(imm & 0b11111); this.code.u1(Jvm.ISHR); }
+					}
+					this.resolveFlags(r0, "setZeroFlag");
+				}
+				case CMPI -> {
+					if (!readable(r0)) return this.callExecute(index, op);
+					this.load(r0);
+					this.code.local(Jvm.ISTORE, this.flagsLeft);
+					this.code.pushInt(imm);
+					this.code.local(Jvm.ISTORE, this.flagsRight);
+					this.deferFlags(FL32REmulator.FLAGS_SUB, -1);
+				}
+				case CMP -> {
+					if (!readable(r0) || !readable(r1)) return this.callExecute(index, op);
+					this.load(r0);
+					this.code.local(Jvm.ISTORE, this.flagsLeft);
+					this.load(r1);
+					this.code.local(Jvm.ISTORE, this.flagsRight);
+					this.deferFlags(FL32REmulator.FLAGS_SUB, -1);
+				}
+				case JMP -> {
+					this.pendingCycles += op.cost();
+					if (this.loops && this.nextPC + imm == this.startAddress) {
+						return this.loop(null);
+					}
+					this.commit(this.nextPC + imm);
+					this.code.u1(Jvm.RETURN);
+					return true;
+				}
+				case JEQ, JNE, JLT, JGT, JGE, JLE, JOF, JNO -> {
+					this.pendingCycles += op.cost();
+					if (this.loops && this.nextPC + imm == this.startAddress) {
+						return this.loop(op);
+					}
+					Bytecode.Label taken = this.code.newLabel();
+					this.commit(this.nextPC);
+					this.jumpIfTaken(op.opcode(), taken);
+					this.code.u1(Jvm.RETURN);
+					this.code.bind(taken);
+					this.setPC(this.nextPC + imm);
+					this.code.u1(Jvm.RETURN);
+					return true;
+				}
+				// privileged, rare (DIV...) or flow controls with a stack access
+				default -> {
+					return this.callExecute(index, op);
+				}
+			}
+			this.pendingCycles += op.cost();
+			return false;
+		}
+
+		// REG_ZERO and PC read fine, the HLP registers may fault (left to execute())
+		private static boolean readable(int r) {
+			return r < REG_MEM_WIN_OFFSET;
+		}
+
+		// writing REG_ZERO is a no-op, writing PC or an HLP register ends the block (execute())
+		private static boolean writable(int r) {
+			return r < REG_PROGRAM_COUNTER;
+		}
+
+		private static boolean isConditionalJump(byte opcode) {
+			return switch (opcode) {
+				case JEQ, JNE, JLT, JGT, JGE, JLE, JOF, JNO -> true;
+				default -> false;
+			};
+		}
+
+		// pushes the value of a readable register
+		private void load(int r) {
+			if (r == REG_ZERO) {
+				this.code.pushInt(0);
+				return;
+			}
+			if (r == REG_PROGRAM_COUNTER) {
+				this.code.pushInt(this.nextPC); // already stepped to the next instruction
+				return;
+			}
+			if (this.state[r] == NOT_LOADED) {
+				this.reload(r);
+				this.state[r] = CLEAN;
+			}
+			this.code.local(Jvm.ILOAD, this.local[r]);
+		}
+
+		private void reload(int r) {
+			this.code.local(Jvm.ALOAD, REGISTERS);
+			this.code.pushInt(r);
+			this.code.u1(Jvm.IALOAD);
+			this.code.local(Jvm.ISTORE, this.local[r]);
+		}
+
+		// pops the value into a writable register
+		private void store(int r) {
+			if (r == REG_ZERO) {
+				this.code.u1(Jvm.POP);
+				return;
+			}
+			this.code.local(Jvm.ISTORE, this.local[r]);
+			this.state[r] = DIRTY;
+		}
+
+		// the emulator changed the register behind the block (already written back)
+		private void forget(int r) {
+			if (this.local[r] >= 0) {
+				this.state[r] = NOT_LOADED;
+			}
+		}
+
+		private void address(int base, int offset) {
+			this.load(base);
+			this.code.pushInt(offset);
+			this.code.u1(Jvm.IADD);
+		}
+
+		// the result of the ADD/SUB-like operation on flagsLeft/flagsRight goes to r (-1 for none, CMP)
+		private void deferFlags(int op, int r) {
+			this.code.local(Jvm.ILOAD, this.flagsLeft);
+			this.code.local(Jvm.ILOAD, this.flagsRight);
+			this.code.u1(op == FL32REmulator.FLAGS_ADD ? Jvm.IADD : Jvm.ISUB);
+			if (r >= 0) {
+				this.code.u1(Jvm.DUP);
+				this.store(r);
+			}
+			this.code.local(Jvm.ISTORE, this.flagsResult);
+			// replaces whatever was pending, the emulator never gets to see it
+			this.pendingFlags = op;
+			this.knownFlags = op;
+		}
+
+		// the result on the stack goes to r, then the emulator resolves the flags with it
+		private void resolveFlags(int r, String setter) {
+			this.code.u1(Jvm.DUP);
+			this.code.local(Jvm.ISTORE, this.temp);
+			this.store(r);
+			this.writeFlags();
+			this.code.local(Jvm.ALOAD, EMU);
+			this.code.local(Jvm.ILOAD, this.temp);
+			this.invokeEmulator(setter, "(I)V");
+			this.knownFlags = FL32REmulator.FLAGS_RESOLVED;
+		}
+
+		private void writeFlags() {
+			if (this.pendingFlags == FL32REmulator.FLAGS_RESOLVED) {
+				return;
+			}
+			this.code.local(Jvm.ALOAD, EMU);
+			this.code.pushInt(this.pendingFlags);
+			this.code.local(Jvm.ILOAD, this.flagsLeft);
+			this.code.local(Jvm.ILOAD, this.flagsRight);
+			this.code.local(Jvm.ILOAD, this.flagsResult);
+			this.invokeEmulator("deferFlags", "(IIII)V");
+			this.pendingFlags = FL32REmulator.FLAGS_RESOLVED;
+		}
+
+		// same conditions as FL32REmulator.jumpTaken(), on the flags the block deferred last
+		private void testFlags(byte opcode, int flags, Bytecode.Label taken) {
+			if (opcode == JOF || opcode == JNO) {
+				this.code.local(Jvm.ILOAD, this.flagsLeft);
+				this.code.local(Jvm.ILOAD, this.flagsRight);
+				this.code.local(Jvm.ILOAD, this.flagsResult);
+				String detector = flags == FL32REmulator.FLAGS_ADD ? "detectAddOverflow" : "detectSubOverflow";
+				this.code.u1(Jvm.INVOKESTATIC);
+				this.code.u2(this.pool.methodRef(UTILS, detector, "(III)Z"));
+				this.code.branch(opcode == JOF ? Jvm.IFNE : Jvm.IFEQ, taken);
+				return;
+			}
+			this.code.local(Jvm.ILOAD, this.flagsResult);
+			this.code.branch(switch (opcode) {
+				case JEQ -> Jvm.IFEQ;
+				case JNE -> Jvm.IFNE;
+				case JLT -> Jvm.IFLT;
+				case JGT -> Jvm.IFGT;
+				case JGE -> Jvm.IFGE;
+				default -> Jvm.IFLE;
+			}, taken);
+		}
+
+		// the flags must have been handed to the emulator if the block did not defer them itself
+		private void jumpIfTaken(byte opcode, Bytecode.Label taken) {
+			if (this.knownFlags != FL32REmulator.FLAGS_RESOLVED) {
+				this.testFlags(opcode, this.knownFlags, taken);
+			} else {
+				this.code.local(Jvm.ALOAD, EMU);
+				this.code.pushInt(opcode);
+				this.invokeEmulator("jumpTaken", "(B)Z");
+				this.code.branch(Jvm.IFNE, taken);
+			}
+		}
+
+		/**
+		 * The block jumps back to its own start (JMP, or a Jcc when op is not null): instead of going back
+		 * to the CPU loop only to be picked again, it runs again right away as long as
+		 * {@link FL32REmulator#blockMayLoop(int)}, its registers staying in the locals
+		 */
+		private boolean loop(DecodedInstruction op) {
+			if (op != null) {
+				Bytecode.Label taken = this.code.newLabel();
+				this.jumpIfTaken(op.opcode(), taken);
+				Snapshot at = this.save();
+				this.commit(this.nextPC);
+				this.code.u1(Jvm.RETURN);
+				this.restore(at);
+				this.code.bind(taken);
+			}
+			// the top expects the flags handed over (the emulator may look at them before the next
+			// iteration sets them) and every register in its local
+			this.writeFlags();
+			for (int r = 0; r < REG_PROGRAM_COUNTER; r++) {
+				if (this.local[r] >= 0 && this.state[r] == NOT_LOADED) {
+					this.reload(r);
+					this.state[r] = CLEAN;
+				}
+			}
+			this.code.local(Jvm.ALOAD, EMU);
+			this.code.pushInt(this.pendingCycles);
+			this.invokeEmulator("blockMayLoop", "(I)Z");
+			this.code.branch(Jvm.IFNE, this.top);
+			this.pendingCycles = 0; // retired by blockMayLoop()
+			this.commit(this.startAddress);
+			this.code.u1(Jvm.RETURN);
+			return true;
+		}
+
+		private void writeBack(int r) {
+			this.code.local(Jvm.ALOAD, REGISTERS);
+			this.code.pushInt(r);
+			this.code.local(Jvm.ILOAD, this.local[r]);
+			this.code.u1(Jvm.IASTORE);
+		}
+
+		private void retire(int cycles) {
+			if (cycles == 0) {
+				return;
+			}
+			this.code.local(Jvm.ALOAD, EMU);
+			this.code.pushInt(cycles);
+			this.invokeEmulator("retire", "(I)V");
+		}
+
+		private void setPC(int pc) {
+			this.code.local(Jvm.ALOAD, REGISTERS);
+			this.code.pushInt(REG_PROGRAM_COUNTER);
+			this.code.pushInt(pc);
+			this.code.u1(Jvm.IASTORE);
+		}
+
+		/**
+		 * Brings the emulator to the state the interpreter has right before executing the
+		 * current instruction (or, at the end of the block, before the next one)
+		 */
+		private void commit(int pc) {
+			this.writeBackAll();
+			this.retire(this.pendingCycles);
+			this.pendingCycles = 0;
+			this.setPC(pc);
+		}
+
+		// the dirty registers and the deferred flags
+		private void writeBackAll() {
+			for (int r = 0; r < REG_PROGRAM_COUNTER; r++) {
+				if (this.state[r] == DIRTY) {
+					this.writeBack(r);
+					this.state[r] = CLEAN;
+				}
+			}
+			this.writeFlags();
+		}
+
+		/**
+		 * LDW/LDB/STW/STB inline when the access is a plain RAM one: it can not fault and nothing
+		 * looks at the guest state meanwhile, so nothing is committed (a store leaves the block
+		 * if it wrote over it). The other accesses (MMIO, ROM, faults) go out of line through
+		 * the emulator, the guest state committed first, and rejoin.
+		 */
+		private void memoryAccess(DecodedInstruction op, boolean store) {
+			boolean word = op.opcode() == LDW || op.opcode() == STW;
+			this.address(op.rOp1(), op.imm());
+			this.code.local(Jvm.ISTORE, this.address);
+			if (store) {
+				this.load(op.rOp0());
+				this.code.local(Jvm.ISTORE, this.temp);
+			}
+			Snapshot before = this.save();
+			Bytecode.Label slow = this.code.newLabel(), rejoin = this.code.newLabel();
+			this.code.local(Jvm.ALOAD, EMU);
+			this.code.local(Jvm.ILOAD, this.address);
+			this.invokeEmulator("isRAMWordAccessible", "(I)Z");
+			this.code.branch(Jvm.IFEQ, slow);
+			this.code.local(Jvm.ALOAD, EMU);
+			this.code.local(Jvm.ILOAD, this.address);
+			if (store) {
+				this.code.local(Jvm.ILOAD, this.temp);
+				if (word) {
+					this.invokeEmulator("writeRAMWord", "(II)V");
+				} else {
+					this.code.u1(Jvm.I2B);
+					this.invokeEmulator("writeRAMByte", "(IB)V");
+				}
+				Bytecode.Label dropped = this.code.newLabel();
+				this.code.local(Jvm.ALOAD, EMU);
+				this.invokeEmulator("blockDropped", "()Z");
+				this.code.branch(Jvm.IFNE, dropped);
+				this.exit(() -> {
+					this.code.bind(dropped);
+					this.pendingCycles += op.cost();
+					this.commit(this.nextPC);
+					this.code.u1(Jvm.RETURN);
+				});
+			} else {
+				if (word) {
+					this.invokeEmulator("readRAMWord", "(I)I");
+				} else {
+					this.invokeEmulator("readRAMByte", "(I)B");
+					this.code.pushInt(0xFF);
+					this.code.u1(Jvm.IAND);
+				}
+				this.code.local(Jvm.ISTORE, this.temp);
+			}
+			this.code.bind(rejoin);
+			if (!store) {
+				this.code.local(Jvm.ILOAD, this.temp);
+				this.store(op.rOp0());
+			}
+			// at the rejoin, the registers and flags the slow path committed are taken as still pending,
+			// committing them again later writes the same values
+			this.exit(before, () -> {
+				this.code.bind(slow);
+				this.writeBackAll();
+				this.setPC(this.nextPC);
+				this.code.local(Jvm.ALOAD, EMU);
+				this.code.local(Jvm.ILOAD, this.address);
+				if (store) {
+					this.code.local(Jvm.ILOAD, this.temp);
+					if (!word) {
+						this.code.u1(Jvm.I2B);
+					}
+				}
+				this.code.pushInt(this.pendingCycles);
+				switch (op.opcode()) {
+					case LDW -> this.invokeEmulator("blockReadWord", "(II)I");
+					case LDB -> {
+						this.invokeEmulator("blockReadByte", "(II)B");
+						this.code.pushInt(0xFF);
+						this.code.u1(Jvm.IAND);
+					}
+					case STW -> this.invokeEmulator("blockWriteWord", "(III)V");
+					default -> this.invokeEmulator("blockWriteByte", "(IBI)V");
+				}
+				if (!store) {
+					this.code.local(Jvm.ISTORE, this.temp);
+				}
+				this.code.local(Jvm.ALOAD, EMU);
+				this.code.pushInt(this.nextPC);
+				this.invokeEmulator("blockInterrupted", "(I)Z");
+				this.code.branch(Jvm.IFEQ, rejoin);
+				// the emulator went elsewhere, the access done
+				if (!store) {
+					this.code.local(Jvm.ILOAD, this.temp);
+					this.store(op.rOp0());
+					this.writeBackAll();
+				}
+				this.retire(this.pendingCycles + op.cost());
+				this.code.u1(Jvm.RETURN);
+			});
+		}
+
+		private boolean callExecute(int index, DecodedInstruction op) {
+			this.commit(this.nextPC);
+			this.code.local(Jvm.ALOAD, EMU);
+			this.code.local(Jvm.ALOAD, OPS);
+			this.code.pushInt(index);
+			this.code.u1(Jvm.AALOAD);
+			this.invokeEmulator("execute", "(L" + DECODED + ";)V");
+			for (int r = 0; r < REG_PROGRAM_COUNTER; r++) {
+				this.forget(r); // it may write any
+			}
+			this.knownFlags = FL32REmulator.FLAGS_RESOLVED;
+			if (endsBlock(op)) {
+				this.retire(op.cost());
+				this.code.u1(Jvm.RETURN);
+				return true;
+			}
+			return this.checkContinue(op);
+		}
+
+		/**
+		 * After a call out: leave the block if the emulator went elsewhere, i.e.
+		 * {@link FL32REmulator#blockInterrupted(int)} (the instruction itself is done)
+		 */
+		private boolean checkContinue(DecodedInstruction op) {
+			this.pendingCycles += op.cost();
+			this.code.local(Jvm.ALOAD, EMU);
+			this.code.pushInt(this.nextPC);
+			this.invokeEmulator("blockInterrupted", "(I)Z");
+			Bytecode.Label exit = this.code.newLabel();
+			this.code.branch(Jvm.IFNE, exit);
+			// the flags were written before the call, only the result register may be dirty
+			int[] dirty = new int[REG_PROGRAM_COUNTER];
+			int count = 0;
+			for (int r = 0; r < REG_PROGRAM_COUNTER; r++) {
+				if (this.state[r] == DIRTY) {
+					dirty[count++] = r;
+				}
+			}
+			int[] toWrite = Arrays.copyOf(dirty, count);
+			int cycles = this.pendingCycles;
+			this.exitsSize += EXIT_SIZE;
+			this.exits.add(() -> {
+				this.code.bind(exit);
+				for (int r : toWrite) {
+					this.writeBack(r);
+				}
+				this.retire(cycles);
+				this.code.u1(Jvm.RETURN);
+			});
+			return false;
+		}
+
+		/**
+		 * Emits the exit out of line, after the block's code, starting from the state the guest
+		 * registers/flags/cycles are in at this point
+		 */
+		private void exit(Runnable exit) {
+			this.exit(this.save(), exit);
+		}
+
+		private void exit(Snapshot at, Runnable exit) {
+			this.exitsSize += EXIT_SIZE;
+			this.exits.add(() -> {
+				this.restore(at);
+				exit.run();
+			});
+		}
+
+		private record Snapshot(int[] state, int pendingFlags, int knownFlags, int pendingCycles, int nextPC) {}
+
+		private Snapshot save() {
+			return new Snapshot(this.state.clone(), this.pendingFlags, this.knownFlags, this.pendingCycles, this.nextPC);
+		}
+
+		private void restore(Snapshot snapshot) {
+			System.arraycopy(snapshot.state(), 0, this.state, 0, this.state.length);
+			this.pendingFlags = snapshot.pendingFlags();
+			this.knownFlags = snapshot.knownFlags();
+			this.pendingCycles = snapshot.pendingCycles();
+			this.nextPC = snapshot.nextPC();
+		}
+
+		private void invokeEmulator(String name, String descriptor) {
+			this.code.u1(Jvm.INVOKEVIRTUAL);
+			this.code.u2(this.pool.methodRef(EMULATOR, name, descriptor));
+		}
+
+		private byte[] classFile() {
+			// the pool has to be complete before it is written
+			int thisClass = this.pool.classRef(BLOCK_CLASS);
+			int superClass = this.pool.classRef("java/lang/Object");
+			int codeInterface = this.pool.classRef(CODE);
+			int objectInit = this.pool.methodRef("java/lang/Object", "<init>", "()V");
+			int init = this.pool.utf8("<init>"), initDescriptor = this.pool.utf8("()V");
+			int run = this.pool.utf8("run"), runDescriptor = this.pool.utf8(RUN_DESCRIPTOR);
+			int codeAttribute = this.pool.utf8("Code");
+			ByteSink frames = this.stackMapFrames(thisClass);
+			int stackMapAttribute = this.pool.utf8("StackMapTable");
+
+			ByteSink out = new ByteSink();
+			out.u4(0xCAFEBABE);
+			out.u2(0); // minor
+			out.u2(61); // Java 17
+			out.u2(this.pool.count);
+			out.bytes(this.pool.bytes);
+			out.u2(Jvm.ACC_FINAL | Jvm.ACC_SUPER);
+			out.u2(thisClass);
+			out.u2(superClass);
+			out.u2(1); // interfaces
+			out.u2(codeInterface);
+			out.u2(0); // fields
+			out.u2(2); // methods
+			// public <init>() { super(); }
+			out.u2(Jvm.ACC_PUBLIC);
+			out.u2(init);
+			out.u2(initDescriptor);
+			out.u2(1); // attributes
+			out.u2(codeAttribute);
+			out.u4(12 + 5);
+			out.u2(1); // max stack
+			out.u2(1); // max locals
+			out.u4(5);
+			out.u1(Jvm.ALOAD_0);
+			out.u1(Jvm.INVOKESPECIAL);
+			out.u2(objectInit);
+			out.u1(Jvm.RETURN);
+			out.u2(0); // exception table
+			out.u2(0); // attributes
+			// public void run(FL32REmulator emu, int[] registers, DecodedInstruction[] ops)
+			out.u2(Jvm.ACC_PUBLIC);
+			out.u2(run);
+			out.u2(runDescriptor);
+			out.u2(1); // attributes
+			out.u2(codeAttribute);
+			out.u4(12 + this.code.size + 6 + frames.size);
+			out.u2(MAX_STACK);
+			out.u2(OPS + 1 + this.intLocals);
+			out.u4(this.code.size);
+			out.bytes(this.code);
+			out.u2(0); // exception table, faults are thrown through
+			out.u2(1); // attributes
+			out.u2(stackMapAttribute);
+			out.u4(frames.size);
+			out.bytes(frames);
+			out.u2(0); // class attributes
+			return Arrays.copyOf(out.data, out.size);
+		}
+
+		/**
+		 * Every branch target has the same frame: all the locals set, nothing on the stack
+		 */
+		private ByteSink stackMapFrames(int thisClass) {
+			int emulatorClass = this.pool.classRef(EMULATOR);
+			int registersClass = this.pool.classRef("[I");
+			int opsClass = this.pool.classRef("[L" + DECODED + ";");
+			ByteSink frames = new ByteSink();
+			frames.u2(this.code.targets.size());
+			int previous = -1;
+			for (int offset : this.code.targets) {
+				if (previous < 0) {
+					frames.u1(Jvm.FULL_FRAME);
+					frames.u2(offset);
+					frames.u2(OPS + 1 + this.intLocals);
+					for (int type : new int[] { thisClass, emulatorClass, registersClass, opsClass }) {
+						frames.u1(Jvm.ITEM_OBJECT);
+						frames.u2(type);
+					}
+					for (int i = 0; i < this.intLocals; i++) {
+						frames.u1(Jvm.ITEM_INTEGER);
+					}
+					frames.u2(0); // stack
+				} else if (offset - previous - 1 <= Jvm.SAME_FRAME_MAX) {
+					frames.u1(offset - previous - 1); // same_frame
+				} else {
+					frames.u1(Jvm.SAME_FRAME_EXTENDED);
+					frames.u2(offset - previous - 1);
+				}
+				previous = offset;
+			}
+			return frames;
+		}
+	}
+
+	private static class ByteSink {
+		byte[] data = new byte[256];
+		int size;
+
+		void u1(int value) {
+			if (this.size == this.data.length) {
+				this.data = Arrays.copyOf(this.data, this.size * 2);
+			}
+			this.data[this.size++] = (byte) value;
+		}
+
+		void u2(int value) {
+			this.u1(value >>> 8);
+			this.u1(value);
+		}
+
+		void u4(int value) {
+			this.u2(value >>> 16);
+			this.u2(value);
+		}
+
+		void bytes(ByteSink other) {
+			for (int i = 0; i < other.size; i++) {
+				this.u1(other.data[i]);
+			}
+		}
+	}
+
+	private static final class ConstantPool {
+		private static final int UTF8 = 1, INTEGER = 3, CLASS = 7, METHODREF = 10, NAME_AND_TYPE = 12;
+
+		final ByteSink bytes = new ByteSink();
+		int count = 1; // the index the next entry gets
+		private final Map<String, Integer> indices = new HashMap<>();
+
+		int utf8(String value) {
+			Integer index = this.indices.get("U" + value);
+			if (index != null) {
+				return index;
+			}
+			byte[] encoded = value.getBytes(StandardCharsets.UTF_8); // plain ASCII names, same as modified UTF-8
+			this.bytes.u1(UTF8);
+			this.bytes.u2(encoded.length);
+			for (byte b : encoded) {
+				this.bytes.u1(b);
+			}
+			return this.add("U" + value);
+		}
+
+		int integer(int value) {
+			Integer index = this.indices.get("I" + value);
+			if (index != null) {
+				return index;
+			}
+			this.bytes.u1(INTEGER);
+			this.bytes.u4(value);
+			return this.add("I" + value);
+		}
+
+		int classRef(String internalName) {
+			Integer index = this.indices.get("C" + internalName);
+			if (index != null) {
+				return index;
+			}
+			int name = this.utf8(internalName);
+			this.bytes.u1(CLASS);
+			this.bytes.u2(name);
+			return this.add("C" + internalName);
+		}
+
+		int methodRef(String owner, String name, String descriptor) {
+			String key = "M" + owner + "." + name + descriptor;
+			Integer index = this.indices.get(key);
+			if (index != null) {
+				return index;
+			}
+			int ownerClass = this.classRef(owner);
+			int nameIndex = this.utf8(name), descriptorIndex = this.utf8(descriptor);
+			Integer nameAndType = this.indices.get("N" + name + descriptor);
+			if (nameAndType == null) {
+				this.bytes.u1(NAME_AND_TYPE);
+				this.bytes.u2(nameIndex);
+				this.bytes.u2(descriptorIndex);
+				nameAndType = this.add("N" + name + descriptor);
+			}
+			this.bytes.u1(METHODREF);
+			this.bytes.u2(ownerClass);
+			this.bytes.u2(nameAndType);
+			return this.add(key);
+		}
+
+		private int add(String key) {
+			this.indices.put(key, this.count);
+			return this.count++;
+		}
+	}
+
+	/**
+	 * A method body, the branches go forward except the one looping back to the top
+	 */
+	private static final class Bytecode extends ByteSink {
+		final TreeSet<Integer> targets = new TreeSet<>(); // offsets needing a stack map frame
+		private final ConstantPool pool;
+
+		Bytecode(ConstantPool pool) {
+			this.pool = pool;
+		}
+
+		static final class Label {
+			private final List<Integer> branches = new ArrayList<>();
+			private int offset = -1; // once bound
+		}
+
+		Label newLabel() {
+			return new Label();
+		}
+
+		void branch(int opcode, Label label) {
+			if (label.offset >= 0) {
+				this.u1(opcode);
+				this.u2(label.offset - (this.size - 1));
+				return;
+			}
+			label.branches.add(this.size);
+			this.u1(opcode);
+			this.u2(0); // patched by bind()
+		}
+
+		void bind(Label label) {
+			label.offset = this.size;
+			this.targets.add(this.size);
+			for (int at : label.branches) {
+				int delta = this.size - at;
+				this.data[at + 1] = (byte) (delta >>> 8);
+				this.data[at + 2] = (byte) delta;
+			}
+		}
+
+		void local(int opcode, int index) {
+			this.u1(opcode);
+			this.u1(index); // a block never has 256 locals
+		}
+
+		void pushInt(int value) {
+			if (value >= -1 && value <= 5) {
+				this.u1(Jvm.ICONST_0 + value);
+			} else if (value == (byte) value) {
+				this.u1(Jvm.BIPUSH);
+				this.u1(value);
+			} else if (value == (short) value) {
+				this.u1(Jvm.SIPUSH);
+				this.u2(value);
+			} else {
+				this.u1(Jvm.LDC_W);
+				this.u2(this.pool.integer(value));
+			}
+		}
+	}
+
+	// the few JVM opcodes and class file constants the blocks need
+	private static final class Jvm {
+		static final int
+			ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11, LDC_W = 0x13,
+			ILOAD = 0x15, ALOAD = 0x19, ALOAD_0 = 0x2A, IALOAD = 0x2E, AALOAD = 0x32,
+			ISTORE = 0x36, IASTORE = 0x4F, POP = 0x57, DUP = 0x59,
+			IADD = 0x60, ISUB = 0x64, IMUL = 0x68, ISHL = 0x78, ISHR = 0x7A, IUSHR = 0x7C,
+			IAND = 0x7E, IOR = 0x80, IXOR = 0x82, I2B = 0x91,
+			IFEQ = 0x99, IFNE = 0x9A, IFLT = 0x9B, IFGE = 0x9C, IFGT = 0x9D, IFLE = 0x9E,
+			RETURN = 0xB1, INVOKEVIRTUAL = 0xB6, INVOKESPECIAL = 0xB7, INVOKESTATIC = 0xB8;
+		static final int ACC_PUBLIC = 0x0001, ACC_FINAL = 0x0010, ACC_SUPER = 0x0020;
+		static final int SAME_FRAME_MAX = 63, SAME_FRAME_EXTENDED = 251, FULL_FRAME = 255;
+		static final int ITEM_INTEGER = 1, ITEM_OBJECT = 7;
+	}
+}
@@ -0,0 +1,29 @@
+package dev.gkvn.cpu.fl32r.emulator;
+
+/**
+ * A basic block of guest code translated to JVM bytecode by {@link FL32RBlockCompiler}.
+ * It is kept in the decode cache page it was compiled from, and dies with it.
+ */
+final class FL32RCompiledBlock {
+	/**
+	 * Implemented by the generated (hidden) classes: runs the block once and retires its cycles,
+	 * PC is left at whatever runs next (the end of the block, a jump target, a trap handler...).
+	 * A fault is thrown through, the faulting instruction not retired, same as the interpreter.
+	 */
+	interface Code {
+		void run(FL32REmulator emu, int[] registers, DecodedInstruction[] ops);
+	}
+
+	final int startAddress, lastAddress;
+	final DecodedInstruction[] ops; // the instructions the block does not inline go through execute()
+	final FL32RDecodeCache.Page page;
+	final Code code;
+
+	FL32RCompiledBlock(int startAddress, DecodedInstruction[] ops, FL32RDecodeCache.Page page, Code code) {
+		this.startAddress = startAddress;
+		this.lastAddress = startAddress + (ops.length - 1) * FL32RConstants.WORD_SIZE;
+		this.ops = ops;
+		this.page = page;
+		this.code = code;
+	}
+}
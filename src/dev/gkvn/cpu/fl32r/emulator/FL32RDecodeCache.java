@@ -0,0 +1,84 @@
+package dev.gkvn.cpu.fl32r.emulator;
+
+import static dev.gkvn.cpu.fl32r.emulator.FL32RConstants.WORD_SIZE;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import dev.gkvn.cpu.utils.ByteMemorySpace;
+
+/**
+ * Per-page cache of decoded instructions for one memory space (RAM or ROM).
+ * 
+ * Pages are filled lazily on the first fetch and dropped as a whole whenever 
+ * anything writes into them (stores, DMA, the host poking the memory...), so
+ * self-modifying code keeps working exactly like before.
+ * 
+ * Only the CPU thread fills the cache, but writes may come from any thread (disk DMA workers...),
+ * the page table is published so the CPU never runs a stale decode.
+ */
+final class FL32RDecodeCache implements ByteMemorySpace.WriteObserver {
+	static final int PAGE_SHIFT = 12; // 4 KB pages
+	static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+	static final int SLOTS_PER_PAGE = PAGE_SIZE / WORD_SIZE;
+	
+	private final AtomicReferenceArray<Page> pages;
+	private Thread fillThread; // the thread calling page(), i.e. the CPU thread
+	
+	FL32RDecodeCache(ByteMemorySpace space) {
+		this.pages = new AtomicReferenceArray<>((int) ((space.length() + PAGE_SIZE - 1) >>> PAGE_SHIFT));
+		space.setWriteObserver(this);
+	}
+	
+	/**
+	 * Take the page before reading the memory it caches, a write happening after that drops it
+	 * (decodes stored into a dropped page are never looked at again).
+	 * @param index word aligned index into the memory space
+	 * @return the (live) page containing index, allocated if needed
+	 */
+	Page page(long index) {
+		int pageIndex = (int) (index >>> PAGE_SHIFT);
+		Page page = pages.get(pageIndex);
+		if (page == null) {
+			this.fillThread = Thread.currentThread();
+			Page created = new Page();
+			// a CAS (not a plain set): it synchronizes with the write that dropped the previous page, 
+			// the bytes it wrote are visible to the fetch that follows
+			page = pages.compareAndSet(pageIndex, null, created) ? created : page(index);
+		}
+		return page;
+	}
+	
+	static int slot(long index) {
+		return (int) (index & (PAGE_SIZE - 1)) / WORD_SIZE;
+	}
+	
+	@Override
+	public void onWrite(long index, long length) {
+		long last = (index + length - 1) >>> PAGE_SHIFT;
+		for (long pageIndex = index >>> PAGE_SHIFT; pageIndex <= last; pageIndex++) {
+			// the CPU's own stores skip the (fencing) clear on pages without decodes, e.g. stack and data,
+			// other threads (DMA workers, the host) always clear: that publishes their bytes to the next page()
+			if (Thread.currentThread() != fillThread) {
+				Page dropped = pages.getAndSet((int) pageIndex, null);
+				if (dropped != null) {
+					dropped.dropped = true;
+				}
+			} else {
+				Page dropped = pages.get((int) pageIndex);
+				if (dropped != null) {
+					dropped.dropped = true; // a block compiled from it may be the one storing
+					pages.set((int) pageIndex, null);
+				}
+			}
+		}
+	}
+	
+	static final class Page {
+		final DecodedInstruction[] decoded = new DecodedInstruction[SLOTS_PER_PAGE];
+		// block compiler, allocated on the first block entry (CPU thread only)
+		FL32RCompiledBlock[] blocks;
+		short[] entries; // per slot, until a block gets compiled there
+		// a compiled block running (or looping) from this page stops after the write that dropped it
+		volatile boolean dropped;
+	}
+}
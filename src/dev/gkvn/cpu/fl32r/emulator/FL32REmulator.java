@@ -2,15 +2,24 @@ package dev.gkvn.cpu.fl32r.emulator;
 
 import static dev.gkvn.cpu.fl32r.emulator.FL32RConstants.*;
 
+import java.awt.GraphicsEnvironment;
+import java.lang.invoke.MethodHandles;
 import java.util.Arrays;
-import java.util.HashSet;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 import dev.gkvn.cpu.GenericCPUEmulator;
 import dev.gkvn.cpu.fl32r.emulator.mmio.FL32RMMIO;
 import dev.gkvn.cpu.fl32r.emulator.mmio.devs.*;
 import dev.gkvn.cpu.utils.ByteMemorySpace;
+import dev.gkvn.cpu.utils.DirectByteMemorySpace;
 import dev.gkvn.cpu.utils.SingletonEventSource;
 import dev.gkvn.cpu.fl32r.emulator.mmio.devs.DiskDriveMMIO.EmulatedVirtualDisk;
 import dev.gkvn.cpu.fl32r.emulator.mmio.devs.SoCControl.CPUID;
@@ -22,6 +31,11 @@ public class FL32REmulator implements GenericCPUEmulator {
 	private boolean ZFL = false; // zero flag (for CMP)
 	private boolean NFL = false; // negative flag; if the last arithmetic (including CMP) operation is negative
 	private boolean OFL = false; // overflow flag
+	// the flags above are only up to date when flagsOp is FLAGS_RESOLVED, otherwise they are derived
+	// (on demand) from the last ADD/SUB-like operation, since most of them are never looked at
+	private int flagsOp = FLAGS_RESOLVED;
+	private int flagsLeft, flagsRight, flagsResult;
+	static final int FLAGS_RESOLVED = 0, FLAGS_ADD = 1, FLAGS_SUB = 2;
 	private boolean HLP = true; // true for since the kernel is loaded first anyway, must be set later if desired
 	
 	private final int registers[] = new int[32]; // 32x 32 bits register
@@ -32,32 +46,87 @@ public class FL32REmulator implements GenericCPUEmulator {
 	// the CPU's read only memory ROM
 	private final ByteMemorySpace readOnlyMemory;
 	
+	// decoded instructions, per physical page (dropped on writes)
+	private final FL32RDecodeCache ramDecodeCache, romDecodeCache;
+	
 	// cpu internal states
-	private boolean cpuHalted = false;
+	private volatile boolean cpuHalted = false;
+	private volatile boolean waitingForInterrupt = false; // halted by HLT, the next IRQ resumes the CPU
 	private int IPR = 0, IFR = 0; // interrupt saved program counter and flag (return)
 	private boolean interruptMask = false; // mask == int not allowed
+	// raised hardware IRQ lines (bit n = line n), set by devices from any thread,
+	// taken by the CPU between instructions (lowest line first) once unmasked
+	private final AtomicInteger pendingIRQs = new AtomicInteger();
 	private FL32RMMIO mmioBus;
 	
 	// emulator parameter/controls
 	private double nsPerCycle;
-	private int frequencyHz;
-	private boolean cpuKilled = false;
+	private volatile int frequencyHz; // set on the CPU thread, read by any
+	private long retiredCycles = 0; // emulated clock, total cost of every retired instruction
+	private final FL32RFrequencyGovernor governor = new FL32RFrequencyGovernor();
+	private final FL32REventScheduler scheduler = new FL32REventScheduler(this::wakeUp);
+	private volatile boolean cpuKilled = false;
 	private boolean cpuStarted = false;
 	private boolean bootRomLoaded = false;
-	private boolean singleStepMode = false;
-	private Set<Long> breakpointsPhysical = new HashSet<>();
+	private volatile boolean singleStepMode = false;
+	private final Set<Long> breakpointsPhysical = ConcurrentHashMap.newKeySet(); // debugger threads add/remove
+	private volatile boolean blockCompilerEnabled = false;
+	private FL32RBlockCompiler blockCompiler; // created on the first block compiled
+	private FL32RDecodeCache.Page blockPage; // of the compiled block running
+	private volatile Thread cpuThread; // the thread running the autonomous execution
+	private static final long IDLE_MAX_PARK_NS = 100_000_000L; // recheck the states at least every 100ms
 	
 	// some stupid
 	private HardwareTimerMMIO timer;
+	private DiskDriveMMIO diskDrive;
+	private VGAGraphicsMMIO vga;
 	
 	public FL32REmulator(long memorySize) {
-		// clamp memorySize to 32-bit unsigned max
-		if (memorySize < 256 || memorySize > RAM_WINDOW_END + 1) {
-			throw new IllegalArgumentException("Memory size must be 256 -> " + (RAM_WINDOW_END + 1) + " bytes");
-		}
+		this(memorySize, false);
+	}
+	
+	/**
+	 * @param offHeap keep the guest RAM outside of the Java heap (recommended for large guests), 
+	 * bounded by -XX:MaxDirectMemorySize, see {@link DirectByteMemorySpace}
+	 */
+	public FL32REmulator(long memorySize, boolean offHeap) {
+		this(offHeap 
+			? DirectByteMemorySpace.allocate(requireValidMemorySize(memorySize))
+			: new ByteMemorySpace(requireValidMemorySize(memorySize))
+		);
+	}
+	
+	/**
+	 * @param memory the guest RAM, any {@link ByteMemorySpace} implementation 
+	 * (e.g. a file backed {@link DirectByteMemorySpace})
+	 */
+	public FL32REmulator(ByteMemorySpace memory) {
+		this(memory, new EmulatedVirtualDisk(
+			DiskDriveMMIO.manifestEVDK(1024, "harddisk.evdk"),
+			"FL32R Ref. Emu\n\0", 
+			"Virtual ATA Disk\n\0", 
+			"00000000-00000000\n\0",
+			"BASIC v1.0\0"
+		));
+	}
+	
+	/**
+	 * @param disk the hard disk attached to the disk controller (image file & storage mode)
+	 */
+	public FL32REmulator(ByteMemorySpace memory, EmulatedVirtualDisk disk) {
+		this(memory, disk, GraphicsEnvironment.isHeadless());
+	}
+	
+	/**
+	 * @param headlessVGA no display window, frames can still be grabbed with {@link VGAGraphicsMMIO#captureFrame()}
+	 */
+	public FL32REmulator(ByteMemorySpace memory, EmulatedVirtualDisk disk, boolean headlessVGA) {
+		requireValidMemorySize(memory.length());
 		this.setFrequencyHz(128_000_000); // 32 MHZ cpu
-		this.memory = new ByteMemorySpace(memorySize);
+		this.memory = memory;
 		this.readOnlyMemory = new ByteMemorySpace(ROM_SIZE); // 1 MB of ROM (for boot code)
+		this.ramDecodeCache = new FL32RDecodeCache(memory);
+		this.romDecodeCache = new FL32RDecodeCache(readOnlyMemory);
 		this.mmioBus = new FL32RMMIO(this);
 		
 		// create keylisteners
@@ -65,39 +134,92 @@ public class FL32REmulator implements GenericCPUEmulator {
 		SingletonEventSource<Integer> keyUp = new SingletonEventSource<>();
 
 		// basic MMIO devices (32 bytes of registers each)
-		this.mmioBus.register(new SoCControl(mmioBus, 0, new CPUID(
+		this.mmioBus.register(new SoCControl(mmioBus, mmioBus.allocateBasicNext(), new CPUID(
 			"EmulatedFL32RISC", 
 			(byte) 0x00,
 			"Generic FL32R Compliant Processor @ " + (getFrequencyHz() / 1_000_000) + "Mhz"
 		)));
-		this.timer = this.mmioBus.register(new HardwareTimerMMIO(mmioBus, mmioBus.allocateBasicNext()));
 		this.mmioBus.register(new DebugConsoleMMIO(mmioBus, mmioBus.allocateBasicNext()));
 		this.mmioBus.register(new PS2KeyboardMMIO(mmioBus, mmioBus.allocateBasicNext(), keyDown, keyUp));
-		this.mmioBus.register(new DiskDriveMMIO(mmioBus, mmioBus.allocateBasicNext(), 
-			new EmulatedVirtualDisk(
-				DiskDriveMMIO.manifestEVDK(1024, "harddisk.evdk"),
-				"FL32R Ref. Emu\n\0", 
-				"Virtual ATA Disk\n\0", 
-				"00000000-00000000\n\0",
-				"BASIC v1.0\0"
-			)
-		));
-		this.mmioBus.register(new VGAGraphicsMMIO(mmioBus, keyDown, keyUp));
+		this.diskDrive = this.mmioBus.register(new DiskDriveMMIO(mmioBus, mmioBus.allocateBasicNext(), disk));
+		// the timer used to share its block with the SoC (and was shadowed by it),
+		// it gets the next free one so the existing device addresses stay put
+		this.timer = this.mmioBus.register(new HardwareTimerMMIO(mmioBus, mmioBus.allocateBasicNext()));
+		this.vga = this.mmioBus.register(headlessVGA 
+			? new VGAGraphicsMMIO(mmioBus) // no window, so no key events either
+			: new VGAGraphicsMMIO(mmioBus, keyDown, keyUp)
+		);
+	}
+	
+	private static long requireValidMemorySize(long memorySize) {
+		// clamp memorySize to 32-bit unsigned max
+		if (memorySize < 256 || memorySize > RAM_WINDOW_END + 1) {
+			throw new IllegalArgumentException("Memory size must be 256 -> " + (RAM_WINDOW_END + 1) + " bytes");
+		}
+		return memorySize;
 	}
 	
 	public FL32RMMIO getMmioBus() {
 		return mmioBus;
 	}
 	
+	public DiskDriveMMIO getDiskDrive() {
+		return diskDrive;
+	}
+	
+	public VGAGraphicsMMIO getVGA() {
+		return vga;
+	}
+	
+	public HardwareTimerMMIO getTimer() {
+		return timer;
+	}
+	
+	/**
+	 * @return the device event scheduler, running on the emulated clock
+	 */
+	public FL32REventScheduler getScheduler() {
+		return scheduler;
+	}
+	
+	/**
+	 * Runs the task on the CPU thread: right away if called from it (or before the CPU started), 
+	 * otherwise at the next instruction boundary. Devices on other threads go through here
+	 * to touch the CPU or device state (IRQs do not need to, see {@link #hardwareIRQ(int)}).
+	 */
+	public void runOnCPUThread(Runnable task) {
+		if (this.isCPUThread()) {
+			task.run();
+		} else {
+			this.scheduler.post(task);
+		}
+	}
+	
+	public boolean isCPUThread() {
+		Thread thread = this.cpuThread;
+		return thread == null || thread == Thread.currentThread();
+	}
+	
+	/**
+	 * Takes effect on the CPU thread, at the next instruction boundary if called from another thread.
+	 */
 	@Override
 	public void setFrequencyHz(int hertz) {
+		this.runOnCPUThread(() -> this.applyFrequency(hertz));
+	}
+	
+	private void applyFrequency(int hertz) {
 		if (hertz < 0) {
 			this.nsPerCycle = -1; // runs AS FAST AS POSSIBLE, period
 			this.frequencyHz = Integer.MAX_VALUE;
-			return;
+		} else {
+			this.frequencyHz = hertz;
+			this.nsPerCycle = 1_000_000_000.0 / hertz;
+		}
+		this.governor.setFrequency(this.nsPerCycle, this.retiredCycles);
+		if (this.timer != null) {
+			this.timer.frequencyChanged(); // not there yet when the constructor sets the frequency
 		}
-		this.frequencyHz = hertz;
-		this.nsPerCycle = 1_000_000_000.0 / hertz;
 	}
 	
 	@Override
@@ -105,6 +227,20 @@ public class FL32REmulator implements GenericCPUEmulator {
 		return this.frequencyHz;
 	}
 	
+	/**
+	 * @return the frequency governor, for tuning its slice length and reading its drift
+	 */
+	public FL32RFrequencyGovernor getGovernor() {
+		return this.governor;
+	}
+	
+	/**
+	 * @return the emulated clock, in cycles (sum of the cost of every retired instruction)
+	 */
+	public long getRetiredCycles() {
+		return this.retiredCycles;
+	}
+	
 	@Override
 	public void loadBootROM(byte[] program) {
 		if (bootRomLoaded) {
@@ -116,9 +252,7 @@ public class FL32REmulator implements GenericCPUEmulator {
 			);
 		}
 		// copy over the program to rom
-		for (int i = 0; i < program.length; i++) {
-			readOnlyMemory.set(i, program[i]);
-		}
+		readOnlyMemory.copyFrom(program, 0, 0, program.length);
 		this.bootRomLoaded = true;
 	}
 	
@@ -144,18 +278,125 @@ public class FL32REmulator implements GenericCPUEmulator {
 			throw new IllegalStateException("CPU has already been started; cannot start twice!");
 		}
 		this.cpuStarted = true;
+		this.cpuThread = Thread.currentThread();
 		// start the cpu halted and in single step mode, needs manual stepping
 		this.reset(startInSingleStepMode);
 		
-		// autonomous execution
+		// autonomous execution, nothing here takes a lock: other threads (debugger, host, devices) 
+		// reach the CPU state through the scheduler inbox, checked before each instruction 
+		// (each compiled block when the block compiler is on)
+		boolean wasIdle = false;
 		while (true) {
 			if (this.cpuKilled) break; // stop the cpu immediately (basically powered off)
 			if (this.singleStepMode || this.cpuHalted) {
-				Thread.onSpinWait(); // basically skip autonomous execution
+				if (!wasIdle) {
+					this.mmioBus.idle(); // devices may do housekeeping now (e.g. write back caches)
+				}
+				this.idle(); // basically skip autonomous execution
+				wasIdle = true;
 				continue;
 			}
+			if (wasIdle) {
+				// the time spent idle is not something to catch up with
+				this.governor.rebase(this.retiredCycles);
+				wasIdle = false;
+			}
 			// normal execution
-			this.stepNextInstruction();
+			if (this.blockCompilerEnabled && this.breakpointsPhysical.isEmpty()) {
+				this.stepNextBlock();
+			} else {
+				this.stepNextInstruction();
+			}
+		}
+	}
+	
+	/**
+	 * Lets autonomous execution run hot code as basic blocks compiled to JVM bytecode
+	 * (see {@link FL32RBlockCompiler}) instead of going through FETCH -> DECODE -> EXECUTE 
+	 * for every instruction. Device events and IRQs are then taken between blocks.
+	 * 
+	 * Single stepping and breakpoints always go through the interpreter.
+	 */
+	public void setBlockCompilerEnabled(boolean enabled) {
+		this.blockCompilerEnabled = enabled;
+	}
+	
+	public boolean isBlockCompilerEnabled() {
+		return this.blockCompilerEnabled;
+	}
+	
+	/**
+	 * Nothing to run: sleep until something wakes the CPU up (IRQ, debugger, kill...)
+	 * instead of burning a host core. A CPU halted by HLT is waiting for an IRQ, its clock 
+	 * keeps running up to the closest event that may raise one (or the host-time timer deadline).
+	 * Work posted by other threads is delivered from here too.
+	 */
+	private void idle() {
+		boolean waitingForIRQ = this.waitingForInterrupt && !this.singleStepMode;
+		long timeoutNs = Long.MAX_VALUE;
+		if (waitingForIRQ) {
+			if (this.irqDeliverable()) {
+				this.takePendingIRQ(); // raised right before HLT
+				return;
+			}
+			timeoutNs = Math.min(this.timer.nanosUntilDeadline(), this.nanosUntilCycles(this.nextEventCycles()));
+		}
+		long parkStart = System.nanoTime();
+		if (timeoutNs > 0 && this.scheduler.due() != 0) {
+			LockSupport.parkNanos(this, Math.min(timeoutNs, IDLE_MAX_PARK_NS));
+		}
+		if (waitingForIRQ && this.waitingForInterrupt) {
+			this.advanceHaltedClock(System.nanoTime() - parkStart);
+			this.timer.pollHostClock();
+		}
+		if (this.retiredCycles >= this.scheduler.due()) {
+			this.scheduler.runDue(this.retiredCycles);
+		}
+		if (waitingForIRQ && this.waitingForInterrupt && this.irqDeliverable()) {
+			this.takePendingIRQ();
+		}
+	}
+	
+	// the closest device event that may raise an IRQ (virtual time timer, vblank...)
+	private long nextEventCycles() {
+		return this.scheduler.nextWakeupCycles();
+	}
+	
+	/**
+	 * @return how long (wall-clock) until the emulated clock reaches the given cycle count, 
+	 * 0 if it already did or when unthrottled (nothing to wait for, the clock skips ahead)
+	 */
+	private long nanosUntilCycles(long cycles) {
+		if (cycles == Long.MAX_VALUE) {
+			return Long.MAX_VALUE;
+		}
+		long remaining = cycles - this.retiredCycles;
+		if (remaining <= 0 || this.nsPerCycle <= 0) {
+			return 0;
+		}
+		return (long) Math.ceil(remaining * this.nsPerCycle);
+	}
+	
+	/**
+	 * The clock of a CPU halted by HLT keeps running, throttled it follows the wall-clock, 
+	 * unthrottled it skips straight to the next device event.
+	 */
+	private void advanceHaltedClock(long elapsedNs) {
+		if (this.nsPerCycle > 0) {
+			this.retiredCycles += (long) (elapsedNs / this.nsPerCycle);
+			return;
+		}
+		long next = this.nextEventCycles();
+		if (next != Long.MAX_VALUE && next > this.retiredCycles) {
+			this.retiredCycles = next;
+		}
+	}
+	
+	// get the CPU thread out of idle()
+	private void wakeUp() {
+		Thread thread = this.cpuThread;
+		if (thread != null && thread != Thread.currentThread()) {
+			LockSupport.unpark(thread);
 		}
 	}
 	
@@ -181,17 +422,36 @@ public class FL32REmulator implements GenericCPUEmulator {
 		this.halt(); // halt initially
 	}
 	
+	/**
+	 * Steps one instruction on the CPU thread, a debugger thread waits until it is done
+	 * (or the CPU is killed meanwhile).
+	 */
 	@Override
-	public synchronized void stepExecution() {
+	public void stepExecution() {
 		if (!this.isCPUAvailable()) {
 			throw new IllegalStateException("CPU not available!");
 		}
 		if (!this.singleStepMode) {
 			throw new IllegalStateException("Single step mode is not activated!");
 		}
-		this.resume(); // the halted flag may be used in the future, so do this sequence
-		this.stepNextInstruction();
-		this.halt(); // halt so it wont overrun (doesnt matter)
+		FutureTask<Void> step = new FutureTask<>(() -> {
+			this.resume(); // the halted flag may be used in the future, so do this sequence
+			this.stepNextInstruction();
+			this.halt(); // halt so it wont overrun (doesnt matter)
+		}, null);
+		this.runOnCPUThread(step);
+		while (!step.isDone() && !this.cpuKilled) {
+			try {
+				step.get(IDLE_MAX_PARK_NS, TimeUnit.NANOSECONDS);
+			} catch (TimeoutException ignored) {
+				// check for kill
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException e) {
+				throw e.getCause() instanceof RuntimeException re ? re : new RuntimeException(e.getCause());
+			}
+		}
 	}
 	
 	@Override
@@ -212,11 +472,16 @@ public class FL32REmulator implements GenericCPUEmulator {
 	}
 	
 	/**
-	 * Does what it says, a full cycle of FETCH -> DECODE -> EXECUTE and simulate
-	 * real hardware speed with spin wait.
+	 * Does what it says, a full cycle of FETCH -> DECODE -> EXECUTE and retire
+	 * the instruction's cycles (the governor keeps the real hardware speed).
 	 */
-	private synchronized final void stepNextInstruction() {
-		this.timer.tick(); // MMIO Timer
+	private final void stepNextInstruction() {
+		if (this.retiredCycles >= this.scheduler.due()) {
+			this.scheduler.runDue(this.retiredCycles); // device events, work posted by other threads
+		}
+		if (this.irqDeliverable()) {
+			this.takePendingIRQ();
+		}
 		try {
 			// ===== FETCH =====
 			int currentPC = this.readRegister(REG_PROGRAM_COUNTER);
@@ -225,7 +490,7 @@ public class FL32REmulator implements GenericCPUEmulator {
 				this.raiseFault(FaultType.FAULT_EXEC);
 				return;
 			}
-			int instruction = this.readWordMemory(currentPC);
+			DecodedInstruction instruction = this.fetchInstruction(currentPC);
 			boolean breakPointHit = this.isAtBreakpoint(currentPC);
 			if (breakPointHit && !this.isOnSingleStepMode()) {
 				this.activateSingleStepMode();
@@ -233,32 +498,168 @@ public class FL32REmulator implements GenericCPUEmulator {
 			}
 			// step to the next instruction, since execution may alter PC, this must be incremented here
 			this.writeRegister(REG_PROGRAM_COUNTER, currentPC + 4); // 4 bytes (32bit) instruction
-			// ===== DECODE =====
-			byte opcode = (byte) ((instruction >>> 24) & 0xFF); // 8 MSB
-			int operand = instruction & 0xFFFFFF;
 			// ===== EXECUTE =====
-			long execStart = System.nanoTime();
-//			System.out.println("INSTRUCTION: " + String.format("%32s", Integer.toBinaryString(instruction)).replace(' ', '0'));
-//			System.out.println("OPCODE: " + String.format("%8s", Integer.toBinaryString(opcode)).replace(' ', '0'));
-//			System.out.println("OPERAND: " + String.format("%24s", Integer.toBinaryString(operand)).replace(' ', '0') + "\n");
-
-			execute(opcode, operand);
-			// LIMIT CPU FREQ FIRST (without this the CPU would run at extreme speed)
-			// compensate for the time that it takes to actually execute the instruction in the JVM
-			if (nsPerCycle > 0) {
-				long jvmExecTime = System.nanoTime() - execStart;
-				long emulatedExecTime = (long)(FL32RCycleTable.COST_TABLE[opcode] * nsPerCycle);
-				long waitForNs = Math.max(0, emulatedExecTime - jvmExecTime);
-				if (waitForNs > 0) {
-					long spinUntil = System.nanoTime() + waitForNs;
-					while (System.nanoTime() < spinUntil) {} // spin wait
-				}
-			}
+			execute(instruction);
+			this.retire(instruction.cost());
 		} catch (FaultRaisedException ignored) {
 			// dont catch this
 		} // runtime exception will throw immediately, crashing the entire emulator (as it should)
 	}
 	
+	/**
+	 * Same as {@link #stepNextInstruction()}, for the whole compiled block at PC. Falls back 
+	 * to the interpreter when there is no block to run (not hot yet, unaligned PC, fetch that 
+	 * would fault...).
+	 */
+	private final void stepNextBlock() {
+		if (this.retiredCycles >= this.scheduler.due()) {
+			this.scheduler.runDue(this.retiredCycles); // device events, work posted by other threads
+		}
+		if (this.irqDeliverable()) {
+			this.takePendingIRQ();
+		}
+		FL32RCompiledBlock block = this.blockAt(this.registers[REG_PROGRAM_COUNTER]);
+		if (block == null) {
+			this.stepNextInstruction();
+			return;
+		}
+		this.blockPage = block.page;
+		try {
+			block.code.run(this, this.registers, block.ops);
+		} catch (FaultRaisedException ignored) {
+			// the trap has been entered, same as the interpreter
+		}
+	}
+	
+	/**
+	 * @return the compiled block starting at pAddress, compiled now if it just got hot,
+	 * null if it is not or the block can not run from here
+	 */
+	private FL32RCompiledBlock blockAt(int pAddress) {
+		if ((pAddress & 3) != 0) {
+			return null;
+		}
+		FL32RDecodeCache.Page page;
+		long index;
+		if (isRAMWordAccessible(pAddress)) {
+			index = uinttl(pAddress);
+			page = ramDecodeCache.page(index);
+		} else if (isROMWordAccessible(pAddress)) {
+			index = pAddressToROMAddress(pAddress);
+			page = romDecodeCache.page(index);
+		} else {
+			return null;
+		}
+		int slot = FL32RDecodeCache.slot(index);
+		if (page.blocks == null) {
+			page.blocks = new FL32RCompiledBlock[FL32RDecodeCache.SLOTS_PER_PAGE];
+			page.entries = new short[FL32RDecodeCache.SLOTS_PER_PAGE];
+		}
+		FL32RCompiledBlock block = page.blocks[slot];
+		if (block == null) {
+			if (++page.entries[slot] < FL32RBlockCompiler.COMPILE_THRESHOLD) {
+				return null;
+			}
+			block = page.blocks[slot] = this.compileBlock(pAddress, page, slot);
+		}
+		// the memory window may have shrunk since, the whole block must still be fetchable
+		if (!isRAMWordAccessible(block.lastAddress) && !isROMWordAccessible(block.lastAddress)) {
+			return null;
+		}
+		return block;
+	}
+	
+	private FL32RCompiledBlock compileBlock(int pAddress, FL32RDecodeCache.Page page, int slot) {
+		DecodedInstruction[] ops = new DecodedInstruction[
+			Math.min(FL32RBlockCompiler.MAX_LENGTH, FL32RDecodeCache.SLOTS_PER_PAGE - slot) // stay in the page
+		];
+		int length = 0;
+		int address = pAddress;
+		while (length < ops.length) {
+			if (length > 0 && !isRAMWordAccessible(address) && !isROMWordAccessible(address)) {
+				break;
+			}
+			DecodedInstruction instruction = this.decode(page, slot + length, address);
+			ops[length++] = instruction;
+			if (FL32RBlockCompiler.endsBlock(instruction)) {
+				break;
+			}
+			address += WORD_SIZE;
+		}
+		if (this.blockCompiler == null) {
+			this.blockCompiler = new FL32RBlockCompiler(MethodHandles.lookup());
+		}
+		return this.blockCompiler.compile(pAddress, Arrays.copyOf(ops, length), page);
+	}
+	
+	/**
+	 * For the compiled blocks, after calling back into the emulator: 
+	 * @return true if the block can not go on, the call jumped (reset, trap...), halted 
+	 * the CPU or wrote over the block
+	 */
+	final boolean blockInterrupted(int nextPC) {
+		return this.registers[REG_PROGRAM_COUNTER] != nextPC || this.blockPage.dropped || this.cpuHalted;
+	}
+	
+	// for the compiled blocks, after a plain RAM store: true if it wrote over the block
+	final boolean blockDropped() {
+		return this.blockPage.dropped;
+	}
+	
+	/**
+	 * For the compiled blocks jumping back to their own start, retires the iteration's cycles
+	 * @return true if the CPU loop would only run the same block again (nothing due, no IRQ 
+	 * to take, still running, no breakpoint, block not written over): it may loop right away
+	 */
+	final boolean blockMayLoop(int cycles) {
+		this.retire(cycles);
+		return this.retiredCycles < this.scheduler.due() && !this.irqDeliverable() && !this.blockPage.dropped
+			&& !this.cpuKilled && !this.singleStepMode && !this.cpuHalted
+			&& this.blockCompilerEnabled && this.breakpointsPhysical.isEmpty();
+	}
+	
+	// advance the emulated clock, and LIMIT CPU FREQ once per slice 
+	// (without this the CPU would run at extreme speed)
+	final void retire(int cycles) {
+		this.retiredCycles += cycles;
+		if (this.retiredCycles >= this.governor.nextSyncCycles()) {
+			this.governor.sync(this.retiredCycles);
+		}
+	}
+	
+	/**
+	 * FETCH + DECODE, served from the decode cache whenever the fetch is known to be 
+	 * legal (aligned, inside RAM/ROM and allowed); anything else takes the normal path
+	 * so faults are raised exactly like before.
+	 */
+	final DecodedInstruction fetchInstruction(int pAddress) {
+		if ((pAddress & 3) == 0) {
+			if (isRAMWordAccessible(pAddress)) {
+				return fetchCached(ramDecodeCache, uinttl(pAddress), pAddress);
+			}
+			if (isROMWordAccessible(pAddress)) {
+				return fetchCached(romDecodeCache, pAddressToROMAddress(pAddress), pAddress);
+			}
+		}
+		return DecodedInstruction.decode(readWordMemory(pAddress));
+	}
+	
+	private DecodedInstruction fetchCached(FL32RDecodeCache cache, long index, int pAddress) {
+		// the page is taken BEFORE the memory is read: a write landing in between drops it, 
+		// so a decode of the old contents can only ever end up in a dead page
+		return this.decode(cache.page(index), FL32RDecodeCache.slot(index), pAddress);
+	}
+	
+	// the page must have been taken before the memory is read, see above
+	private DecodedInstruction decode(FL32RDecodeCache.Page page, int slot, int pAddress) {
+		DecodedInstruction decoded = page.decoded[slot];
+		if (decoded == null) {
+			decoded = DecodedInstruction.decode(readWordMemory(pAddress));
+			page.decoded[slot] = decoded;
+		}
+		return decoded;
+	}
+	
 	public boolean isAtBreakpoint(int currentPC) {
 		if (breakpointsPhysical.size() == 0) {
 			return false;
@@ -273,20 +674,31 @@ public class FL32REmulator implements GenericCPUEmulator {
 	
 	@Override
 	public void resume() {
+		this.waitingForInterrupt = false;
 		this.cpuHalted = false;
+		this.wakeUp();
 	}
 	
+	/**
+	 * Takes effect on the CPU thread, at the next instruction boundary if called from another thread.
+	 */
 	@Override
 	public void reset(boolean resetToSingleStepMode) {
 		if (!this.isCPUAvailable()) {
 			throw new IllegalStateException("CPU not available!");
 		}
+		this.runOnCPUThread(() -> this.resetState(resetToSingleStepMode));
+	}
+	
+	private void resetState(boolean resetToSingleStepMode) {
 		// reset all registers and flags
 		this.singleStepMode = false;
 		Arrays.fill(this.registers, 0x00);
 		this.ZFL = false;
 		this.NFL = false;
 		this.OFL = false;
+		this.flagsOp = FLAGS_RESOLVED;
+		this.pendingIRQs.set(0);
 		this.HLP = true; // start in the highest level privilege
 		// jump to the VALUE of reset vector (inside the ROM)
 		writeRegister(REG_PROGRAM_COUNTER, (int) (ROM_MMAP_START & 0xFFFFFFFF)); 
@@ -304,6 +716,8 @@ public class FL32REmulator implements GenericCPUEmulator {
 		}
 		this.halt();
 		this.cpuKilled = true;
+		this.wakeUp();
+		this.mmioBus.shutdown(); // flush disks etc.
 	}
 	
 	@Override
@@ -338,15 +752,17 @@ public class FL32REmulator implements GenericCPUEmulator {
 	
 	@Override
 	public boolean[] dumpFlags() {
-		return new boolean[] { ZFL, NFL, OFL, HLP };
+		return new boolean[] { zeroFlag(), negativeFlag(), overflowFlag(), HLP };
 	}
 	
-	final void execute(byte opcode, int operand) {
+	final void execute(DecodedInstruction instruction) {
+		byte opcode = instruction.opcode();
 		// register operand could be interpreted differently
-		int rOp0 = (operand >> 19) & 0b11111;
-		int rOp1 = (operand >> 14) & 0b11111;
-		int rOp2 = (operand >> 9) & 0b11111;
+		int rOp0 = instruction.rOp0();
+		int rOp1 = instruction.rOp1();
+		int rOp2 = instruction.rOp2();
 		int rDest = rOp0; // rOp0 could be interpreted as rDestination
+		int immediate = instruction.imm(); // already sign-extended (if needed)
 		
 		switch (opcode) {
 			case NOP: { break; }
@@ -357,13 +773,11 @@ public class FL32REmulator implements GenericCPUEmulator {
 			}
 			// load an immediate to the top 16 bits of a register
 			case LUI: {
-				int immediate = (operand >> 3) & 0xFFFF;
 				writeRegister(rDest, immediate << 16); // pads 16 lower bits
 				break;
 			}
 			// load an immediate to the lower 16 bits of a register
 			case LLI: {
-				int immediate = (operand >> 3) & 0xFFFF;
 				writeRegister(rDest, (HI(readRegister(rDest)) << 16) | immediate);
 				break;
 			}
@@ -371,16 +785,14 @@ public class FL32REmulator implements GenericCPUEmulator {
 			// load a word: rDest = Memory[rOp1]...[rOp1+3]
 			case LDW: {
 				int baseAddress = readRegister(rOp1);
-				int offset = Utils.convertImm14ToInt(operand & 0x3FFF);
-				writeRegister(rDest, readWordMemory(baseAddress + offset));
+				writeRegister(rDest, readWordMemory(baseAddress + immediate));
 				break;
 			}
 			// load a byte: rDest = Memory[rOp1]
 			case LDB: {
 				int baseAddress = readRegister(rOp1);
-				int offset = Utils.convertImm14ToInt(operand & 0x3FFF);
 				// mask off the upper 24 bits (0xFF)
-				writeRegister(rDest, readByteMemory(baseAddress + offset), 0xFF);
+				writeRegister(rDest, readByteMemory(baseAddress + immediate), 0xFF);
 				break;
 			}
 			// STORE convention: STORE A, B, OFFSET <=> READ A STORE TO B + OFFSET
@@ -388,17 +800,15 @@ public class FL32REmulator implements GenericCPUEmulator {
 			case STW: {
 				// disambiguation
 				int rSrc = rOp0, baseAddress = readRegister(rOp1);
-				int offset = Utils.convertImm14ToInt(operand & 0x3FFF);
-				writeWordMemory(baseAddress + offset, readRegister(rSrc));
+				writeWordMemory(baseAddress + immediate, readRegister(rSrc));
 				break;
 			}
 			// store a byte: Memory[rMemDest] = rSrc
 			case STB: {
 				// disambiguation
 				int rSrc = rDest, baseAddress = readRegister(rOp1);
-				int offset = Utils.convertImm14ToInt(operand & 0x3FFF);
 				byte value = (byte)(readRegister(rSrc) & 0xFF);
-				writeByteMemory(baseAddress + offset, value);
+				writeByteMemory(baseAddress + immediate, value);
 				break;
 			}
 			// arithmetic operations: rDest = rOp1 [opcode] rOp2
@@ -423,12 +833,12 @@ public class FL32REmulator implements GenericCPUEmulator {
 				};
 				writeRegister(rDest, result);
 				// set the flags
-				this.ZFL = result == 0;
-				this.NFL = (result < 0);
 				if (opcode == ADD) {
-					this.OFL = Utils.detectAddOverflow(left, right, result);
+					this.deferFlags(FLAGS_ADD, left, right, result);
 				} else if (opcode == SUB) {
-					this.OFL = Utils.detectSubOverflow(left, right, result);
+					this.deferFlags(FLAGS_SUB, left, right, result);
+				} else {
+					this.setZeroNegativeFlags(result);
 				}
 				break;
 			}
@@ -450,7 +860,7 @@ public class FL32REmulator implements GenericCPUEmulator {
 				};
 				writeRegister(rDest, result);
 				// for bitwise, only this flag is useful
-				this.ZFL = result == 0;
+				this.setZeroFlag(result);
 				break;
 			}
 			// immediate arithmetic & bitwise ops (special ones)
@@ -460,7 +870,6 @@ public class FL32REmulator implements GenericCPUEmulator {
 			case SHRI: case SRAI:
 			case SHLI: {
 				int current = readRegister(rDest); 
-				int immediate = Utils.convertImm19ToInt(operand);
 				int result = switch (opcode) {
 					case ADDI -> current + immediate;
 					case ANDI -> current & immediate;
@@ -472,24 +881,21 @@ public class FL32REmulator implements GenericCPUEmulator {
 					default -> raiseFault(FaultType.FAULT_ILLEGAL);
 				};
 				writeRegister(rDest, result);					
-				// this flag must be set universally for all
-				this.ZFL = result == 0;
 				// set the flags for addi excl.
 				if (opcode == ADDI) {
-					this.NFL = (result < 0);
-					this.OFL = Utils.detectAddOverflow(current, immediate, result);
+					this.deferFlags(FLAGS_ADD, current, immediate, result);
+				} else {
+					// this flag must be set universally for all
+					this.setZeroFlag(result);
 				}
 				break;
 			}
 			// COMPARE IMMEDIATE: r0 (rOp0) - immediate (19 bits lsb; signed)
 			case CMPI: {
 				int left  = readRegister(rOp0); 
-				int right = Utils.convertImm19ToInt(operand);
-				int result = left - right;
+				int right = immediate;
 				// set the flags
-				this.ZFL = result == 0;
-				this.NFL = (result < 0);
-				this.OFL = Utils.detectSubOverflow(left, right, result);
+				this.deferFlags(FLAGS_SUB, left, right, left - right);
 				break;
 			}
 			// stack operations push(rDest)
@@ -504,11 +910,8 @@ public class FL32REmulator implements GenericCPUEmulator {
 			// COMPARE (like SUB): r0 (rOp0) - r1 (rOp1) [rOp2 is ignored]
 			case CMP: {
 				int left = readRegister(rOp0), right = readRegister(rOp1);
-				int result = left - right;
 				// set the flags
-				this.ZFL = result == 0;
-				this.NFL = (result < 0);
-				this.OFL = Utils.detectSubOverflow(left, right, result);
+				this.deferFlags(FLAGS_SUB, left, right, left - right);
 				break;
 			}
 			// FLOW CONTROLS (relative-to-pc jumps: RJUMP)
@@ -519,21 +922,9 @@ public class FL32REmulator implements GenericCPUEmulator {
 			case JOF: case JNO: {
 				// read the current PC
 				int absAddress = readRegister(REG_PROGRAM_COUNTER);
-				absAddress += Utils.convertImm24ToInt(operand); // add the rel-jump 
-				boolean shouldJump = switch (opcode) {
-					case JMP -> true;
-					case JEQ -> ZFL; // a - b == 0 <-> a == b
-					case JNE -> !ZFL; // a - b != 0 <-> a != b
-					case JGT -> !NFL && !ZFL; // a - b > 0 <-> a > b
-					case JLT -> NFL; // a - b < 0 <-> a < b
-					case JGE -> !NFL || ZFL; // a >= b
-					case JLE -> NFL || ZFL; // a <= b
-					case JOF -> OFL; // overflow
-					case JNO -> !OFL; // not ovfl
-					default -> false;
-				};
+				absAddress += immediate; // add the rel-jump 
 				// jump to it
-				if (shouldJump) {
+				if (this.jumpTaken(opcode)) {
 					writeRegister(REG_PROGRAM_COUNTER, absAddress);
 				}
 				break;
@@ -543,7 +934,7 @@ public class FL32REmulator implements GenericCPUEmulator {
 				pushToStack(readRegister(REG_PROGRAM_COUNTER));
 				// read the current PC and jump
 				int absAddress = readRegister(REG_PROGRAM_COUNTER);
-				absAddress += Utils.convertImm24ToInt(operand); // add the rel-jump 
+				absAddress += immediate; // add the rel-jump 
 				writeRegister(REG_PROGRAM_COUNTER, absAddress);
 				break;
 			}
@@ -565,7 +956,7 @@ public class FL32REmulator implements GenericCPUEmulator {
 			}
 			// INT (interrupt)
 			case INT: {
-				softwareIRQ(Utils.convertImm24ToInt(operand));
+				softwareIRQ(immediate);
 				break;
 			}
 			// HLP INSTRUCTIONS (Executed by the Kernel/HLP entities)
@@ -607,6 +998,7 @@ public class FL32REmulator implements GenericCPUEmulator {
 			case STFS: {
 				if (!this.HLP) raiseFault(FaultType.FAULT_PRIV);
 				int packedFlags = readRegister(rOp1);
+				this.flagsOp = FLAGS_RESOLVED;
 				this.ZFL = (packedFlags & Utils.FLAG_Z) == 1;
 				this.NFL = (packedFlags & Utils.FLAG_N) == 1;
 				this.OFL = (packedFlags & Utils.FLAG_O) == 1;
@@ -634,6 +1026,7 @@ public class FL32REmulator implements GenericCPUEmulator {
 			case HLT: {
 				if (!this.HLP) raiseFault(FaultType.FAULT_PRIV);
 				this.halt();
+				this.waitingForInterrupt = true;
 				break;
 			}
 			// Kills the cpu immediately (emulator-only instruction)
@@ -689,13 +1082,39 @@ public class FL32REmulator implements GenericCPUEmulator {
 		enterTrap(SOFTWARE_INT_BASE + (WORD_SIZE * type), true);
 	}
 	
+	/**
+	 * Raises a hardware IRQ line, any thread. The line stays pending until the CPU takes it 
+	 * at an instruction boundary, an IRQ raised while interrupts are masked is taken once they
+	 * are unmasked (raising an already pending line again is a no-op).
+	 */
 	public final void hardwareIRQ(int type) {
 		if (type < 0 || type >= HARDWARE_INT_COUNT) {
-			enterTrap(UNHANDLED_INTERRUPT_VECTOR, true);
+			this.runOnCPUThread(() -> enterTrap(UNHANDLED_INTERRUPT_VECTOR, true)); // not a line
 			return;
 		}
+		int line = 1 << type;
+		if ((this.pendingIRQs.getAndAccumulate(line, (pending, bit) -> pending | bit) & line) == 0) {
+			this.wakeUp(); // may be waiting in HLT
+		}
+	}
+	
+	private boolean irqDeliverable() {
+		return !this.interruptMask && this.pendingIRQs.get() != 0;
+	}
+	
+	// CPU thread only (the only one clearing lines), at least one line must be pending
+	private void takePendingIRQ() {
+		int pending, type;
+		do {
+			pending = this.pendingIRQs.get();
+			type = Integer.numberOfTrailingZeros(pending); // lowest line has the highest priority
+		} while (!this.pendingIRQs.compareAndSet(pending, pending & ~(1 << type)));
 		// trap the interrupt
 		enterTrap(HARDWARE_INT_BASE + (WORD_SIZE * type), true);
+		// an interrupt taken ends HLT
+		if (this.waitingForInterrupt && !this.singleStepMode) {
+			this.resume();
+		}
 	}
 	
 	final void enterTrap(int vectorAddress, boolean isInterrupt) {
@@ -708,7 +1127,7 @@ public class FL32REmulator implements GenericCPUEmulator {
 			return; // ignore
 		}
 		this.IPR = readRegister(REG_PROGRAM_COUNTER);
-		this.IFR = Utils.packFlags(ZFL, NFL, OFL);
+		this.IFR = Utils.packFlags(zeroFlag(), negativeFlag(), overflowFlag());
 		this.HLP = true;
 		this.interruptMask = true; // do not allow interrupts from now on
 		// resume to the full memory region (at 0x0000-HIMEM)
@@ -725,6 +1144,69 @@ public class FL32REmulator implements GenericCPUEmulator {
 		writeRegister(REG_PROGRAM_COUNTER, irqHandleAddress);
 	}
 	
+	// condition of the relative jumps, on the current flags
+	final boolean jumpTaken(byte opcode) {
+		return switch (opcode) {
+			case JMP -> true;
+			case JEQ -> zeroFlag(); // a - b == 0 <-> a == b
+			case JNE -> !zeroFlag(); // a - b != 0 <-> a != b
+			case JGT -> !negativeFlag() && !zeroFlag(); // a - b > 0 <-> a > b
+			case JLT -> negativeFlag(); // a - b < 0 <-> a < b
+			case JGE -> !negativeFlag() || zeroFlag(); // a >= b
+			case JLE -> negativeFlag() || zeroFlag(); // a <= b
+			case JOF -> overflowFlag(); // overflow
+			case JNO -> !overflowFlag(); // not ovfl
+			default -> false;
+		};
+	}
+	
+	// FLAGS (lazily evaluated)
+	final void deferFlags(int op, int left, int right, int result) {
+		this.flagsOp = op;
+		this.flagsLeft = left;
+		this.flagsRight = right;
+		this.flagsResult = result;
+	}
+	
+	// must be called before setting only a subset of the flags
+	final void resolveFlags() {
+		if (this.flagsOp == FLAGS_RESOLVED) return;
+		boolean z = zeroFlag(), n = negativeFlag(), o = overflowFlag();
+		this.ZFL = z;
+		this.NFL = n;
+		this.OFL = o;
+		this.flagsOp = FLAGS_RESOLVED;
+	}
+	
+	// bitwise operations, the other flags are left as is
+	final void setZeroFlag(int result) {
+		this.resolveFlags();
+		this.ZFL = result == 0;
+	}
+	
+	// multiply/divide, OFL is left as is
+	final void setZeroNegativeFlags(int result) {
+		this.resolveFlags();
+		this.ZFL = result == 0;
+		this.NFL = result < 0;
+	}
+	
+	final boolean zeroFlag() {
+		return this.flagsOp == FLAGS_RESOLVED ? this.ZFL : this.flagsResult == 0;
+	}
+	
+	final boolean negativeFlag() {
+		return this.flagsOp == FLAGS_RESOLVED ? this.NFL : this.flagsResult < 0;
+	}
+	
+	final boolean overflowFlag() {
+		return switch (this.flagsOp) {
+			case FLAGS_ADD -> Utils.detectAddOverflow(flagsLeft, flagsRight, flagsResult);
+			case FLAGS_SUB -> Utils.detectSubOverflow(flagsLeft, flagsRight, flagsResult);
+			default -> this.OFL;
+		};
+	}
+	
 	// REGISTER MANIPULATION
 	final void writeRegister(int regIndex, int value) {
 		this.writeRegister(regIndex, value, 0xFF_FF_FF_FF); // no-op mask
@@ -786,6 +1268,20 @@ public class FL32REmulator implements GenericCPUEmulator {
 		return relative < 0 || relative > getMemorySize();
 	}
 	
+	// true when a word access at pAddress lands entirely in RAM and can not fault, i.e.
+	// the byte-by-byte path would read exactly memory[pAddress..pAddress+3]
+	// (keeps clear of the last bytes before the ROM, where those reads spill into ROM)
+	final boolean isRAMWordAccessible(int pAddress) {
+		long address = uinttl(pAddress);
+		return address + 3 < this.memory.length() && address + 6 < ROM_MMAP_START
+			&& !isRAMAddressOOB(pAddress) && !isRAMAddressOOB(pAddress + 3);
+	}
+	
+	// same as above, for the ROM (the last word of the ROM reads back as 0 byte-by-byte)
+	final boolean isROMWordAccessible(int pAddress) {
+		return HLP && isPhysicalAddressROM(pAddress) && pAddressToROMAddress(pAddress) + 6 < ROM_SIZE;
+	}
+	
 	final byte readByteMemory(int pAddress) {
 		if (isPhysicalAddressMMIO(pAddress)) {
 			if (!HLP) {
@@ -836,6 +1332,11 @@ public class FL32REmulator implements GenericCPUEmulator {
 	}
 	
 	final void writeWordMemory(int pAddress, int data) {
+		// fast path: the whole word sits in RAM, inside the memory window
+		if (isRAMWordAccessible(pAddress)) {
+			this.memory.setInt(uinttl(pAddress), data);
+			return;
+		}
 		if (isPhysicalAddressMMIO(pAddress)) {
 			if (!HLP) {
 				this.raiseFault(FaultType.FAULT_PRIV);
@@ -854,6 +1355,13 @@ public class FL32REmulator implements GenericCPUEmulator {
 	}
 	
 	final int readWordMemory(int pAddress) {
+		// fast paths: the whole word sits in RAM (inside the memory window) or ROM
+		if (isRAMWordAccessible(pAddress)) {
+			return this.memory.getInt(uinttl(pAddress));
+		}
+		if (isROMWordAccessible(pAddress)) {
+			return this.readOnlyMemory.getInt(pAddressToROMAddress(pAddress));
+		}
 		if (isPhysicalAddressMMIO(pAddress)) {
 			if (!HLP) {
 				return this.raiseFault(FaultType.FAULT_PRIV);
@@ -871,6 +1379,52 @@ public class FL32REmulator implements GenericCPUEmulator {
 		);
 	}
 	
+	// for the compiled blocks, where isRAMWordAccessible(pAddress) holds: can not fault
+	final int readRAMWord(int pAddress) {
+		return this.memory.getInt(uinttl(pAddress));
+	}
+	
+	final byte readRAMByte(int pAddress) {
+		return this.memory.getUInt(pAddress);
+	}
+	
+	final void writeRAMWord(int pAddress, int data) {
+		this.memory.setInt(uinttl(pAddress), data);
+	}
+	
+	final void writeRAMByte(int pAddress, byte data) {
+		this.memory.setUInt(pAddress, data);
+	}
+	
+	// for the compiled blocks, the other accesses (MMIO, ROM, faults...): made with the cycles the block
+	// has not retired yet counted in, devices see the clock where the interpreter would have it.
+	// They are still the block's to retire, unless the access faults (the trap is entered with them)
+	final int blockReadWord(int pAddress, int pendingCycles) {
+		this.retiredCycles += pendingCycles;
+		int value = this.readWordMemory(pAddress);
+		this.retiredCycles -= pendingCycles;
+		return value;
+	}
+	
+	final byte blockReadByte(int pAddress, int pendingCycles) {
+		this.retiredCycles += pendingCycles;
+		byte value = this.readByteMemory(pAddress);
+		this.retiredCycles -= pendingCycles;
+		return value;
+	}
+	
+	final void blockWriteWord(int pAddress, int data, int pendingCycles) {
+		this.retiredCycles += pendingCycles;
+		this.writeWordMemory(pAddress, data);
+		this.retiredCycles -= pendingCycles;
+	}
+	
+	final void blockWriteByte(int pAddress, byte data, int pendingCycles) {
+		this.retiredCycles += pendingCycles;
+		this.writeByteMemory(pAddress, data);
+		this.retiredCycles -= pendingCycles;
+	}
+	
 	// STACK MANIPULATION
 	// STACK CONVENTION: INDUSTRY STANDARD
 	final void pushToStack(int value) {
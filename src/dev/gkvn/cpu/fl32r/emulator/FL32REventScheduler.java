@@ -0,0 +1,204 @@
+package dev.gkvn.cpu.fl32r.emulator;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Device timing on the emulated clock.
+ *
+ * Devices schedule their future events (timer deadline, vblank...) at a retired cycle count,
+ * the CPU only compares its clock against the earliest one between instructions.
+ * The queue itself belongs to the CPU thread, other threads (disk workers, Swing, the host...)
+ * post their work to the inbox instead, it runs on the CPU thread at the next instruction boundary.
+ */
+public final class FL32REventScheduler {
+	public static final long NEVER = Long.MAX_VALUE;
+
+	@FunctionalInterface
+	public interface EventHandler {
+		/**
+		 * @param retiredCycles the emulated clock, at or past the scheduled time, 
+		 * rescheduling from here must be strictly after it
+		 */
+		void fire(long retiredCycles);
+	}
+
+	public static final class Event {
+		private final String name;
+		private final EventHandler handler;
+		private boolean wakeup;
+		private long when = NEVER;
+		private int heapIndex = -1;
+
+		public Event(String name, EventHandler handler) {
+			this.name = name;
+			this.handler = handler;
+		}
+
+		/**
+		 * @param wakeup the event may raise an interrupt, a CPU waiting in HLT sleeps until (or skips 
+		 * straight to) these only, the others wait until the clock gets there anyway
+		 */
+		public void setWakeup(boolean wakeup) {
+			this.wakeup = wakeup;
+		}
+
+		public boolean isScheduled() {
+			return heapIndex >= 0;
+		}
+
+		public long getWhen() {
+			return when;
+		}
+
+		@Override
+		public String toString() {
+			return name + "@" + (isScheduled() ? Long.toString(when) : "-");
+		}
+	}
+
+	// binary min-heap on Event.when
+	private Event[] heap = new Event[8];
+	private int size = 0;
+
+	// what the CPU compares against, the earliest event, or 0 when there is mail
+	private volatile long due = NEVER;
+	private final ConcurrentLinkedQueue<Runnable> inbox = new ConcurrentLinkedQueue<>();
+	private final Runnable wakeUp;
+
+	/**
+	 * @param wakeUp gets the CPU out of its idle sleep when mail is posted
+	 */
+	FL32REventScheduler(Runnable wakeUp) {
+		this.wakeUp = wakeUp;
+	}
+
+	/**
+	 * (Re)schedules the event at the given emulated time, CPU thread only
+	 */
+	public void schedule(Event event, long retiredCycles) {
+		if (retiredCycles == NEVER) {
+			cancel(event);
+			return;
+		}
+		long previous = event.when;
+		event.when = retiredCycles;
+		if (event.heapIndex < 0) {
+			if (size == heap.length) {
+				heap = Arrays.copyOf(heap, size * 2);
+			}
+			event.heapIndex = size;
+			heap[size++] = event;
+			siftUp(event.heapIndex);
+		} else if (retiredCycles < previous) {
+			siftUp(event.heapIndex);
+		} else {
+			siftDown(event.heapIndex);
+		}
+		updateDue();
+	}
+
+	public void cancel(Event event) {
+		int i = event.heapIndex;
+		if (i < 0) {
+			return;
+		}
+		Event last = heap[--size];
+		heap[size] = null;
+		event.heapIndex = -1;
+		event.when = NEVER;
+		if (i != size) {
+			heap[i] = last;
+			last.heapIndex = i;
+			siftDown(i);
+			siftUp(last.heapIndex);
+		}
+		updateDue();
+	}
+
+	/**
+	 * Runs the task on the CPU thread at the next instruction boundary (or right away
+	 * in the idle loop), any thread
+	 */
+	public void post(Runnable task) {
+		inbox.add(task);
+		due = 0; // after the add, see updateDue()
+		wakeUp.run();
+	}
+
+	/**
+	 * @return the retired cycle count at which {@link #runDue(long)} has something to do
+	 */
+	long due() {
+		return due;
+	}
+
+	/**
+	 * @return the earliest wakeup event, NEVER if none
+	 */
+	long nextWakeupCycles() {
+		long next = NEVER;
+		for (int i = 0; i < size; i++) { // a handful of events at most
+			if (heap[i].wakeup && heap[i].when < next) {
+				next = heap[i].when;
+			}
+		}
+		return next;
+	}
+
+	/**
+	 * Delivers the mail and fires every event due at the given time, CPU thread only
+	 */
+	void runDue(long retiredCycles) {
+		Runnable task;
+		while ((task = inbox.poll()) != null) {
+			task.run();
+		}
+		while (size > 0 && heap[0].when <= retiredCycles) {
+			Event event = heap[0];
+			cancel(event); // handlers usually reschedule themselves
+			event.handler.fire(retiredCycles);
+		}
+		updateDue();
+	}
+
+	private void updateDue() {
+		due = size > 0 ? heap[0].when : NEVER;
+		// mail posted while due was being rewritten must not be lost
+		if (!inbox.isEmpty()) {
+			due = 0;
+		}
+	}
+
+	private void siftUp(int i) {
+		Event event = heap[i];
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			Event p = heap[parent];
+			if (p.when <= event.when) break;
+			heap[i] = p;
+			p.heapIndex = i;
+			i = parent;
+		}
+		heap[i] = event;
+		event.heapIndex = i;
+	}
+
+	private void siftDown(int i) {
+		Event event = heap[i];
+		int half = size >>> 1;
+		while (i < half) {
+			int child = 2 * i + 1;
+			int right = child + 1;
+			if (right < size && heap[right].when < heap[child].when) {
+				child = right;
+			}
+			if (event.when <= heap[child].when) break;
+			heap[i] = heap[child];
+			heap[i].heapIndex = i;
+			i = child;
+		}
+		heap[i] = event;
+		event.heapIndex = i;
+	}
+}
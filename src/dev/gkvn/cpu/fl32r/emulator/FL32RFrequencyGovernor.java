@@ -0,0 +1,135 @@
+package dev.gkvn.cpu.fl32r.emulator;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Keeps the emulated CPU at its nominal frequency ON AVERAGE.
+ * 
+ * Instead of spin-waiting after every instruction, the CPU runs freely for a slice
+ * of emulated time, then sleeps once to let the wall-clock catch up with it. 
+ * If the host falls too far behind (too slow, or the CPU was paused), the lag is
+ * forgiven instead of bursting through it.
+ */
+public final class FL32RFrequencyGovernor {
+	public static final long DEFAULT_SLICE_NS = 1_000_000L; // 1ms of emulated time
+	public static final long MAX_LAG_NS = 50_000_000L; // 50ms
+	
+	private double nsPerCycle = -1;
+	private volatile long sliceNs = DEFAULT_SLICE_NS; // requested by any thread
+	private long appliedSliceNs; // what sliceCycles was computed from, CPU thread
+	private long sliceCycles;
+	
+	// the anchor, emulated time is measured from here
+	private long epochNs;
+	private long epochCycles;
+	private long nextSyncCycles;
+	
+	// stats
+	private volatile long driftNs; // wall-clock - emulated time at the last sync (> 0 = host behind)
+	private volatile long forgivenNs; // total lag dropped so far
+	private volatile double effectiveHz;
+	
+	/**
+	 * @param nsPerCycle <= 0 to disable throttling
+	 */
+	void setFrequency(double nsPerCycle, long retiredCycles) {
+		this.nsPerCycle = nsPerCycle;
+		this.updateSliceCycles();
+		this.rebase(retiredCycles);
+	}
+	
+	/**
+	 * Sets how much emulated time the CPU may run between two sleeps. Shorter is smoother, 
+	 * longer costs less host CPU (the OS can not sleep much shorter than ~50us anyway).
+	 * Any thread, the CPU picks it up at the end of the current slice.
+	 */
+	public void setSliceLengthNs(long sliceNs) {
+		if (sliceNs <= 0) {
+			throw new IllegalArgumentException("Slice length must be > 0");
+		}
+		this.sliceNs = sliceNs;
+	}
+	
+	public long getSliceLengthNs() {
+		return this.sliceNs;
+	}
+	
+	private void updateSliceCycles() {
+		this.appliedSliceNs = this.sliceNs;
+		this.sliceCycles = nsPerCycle > 0 ? Math.max(1, (long) (sliceNs / nsPerCycle)) : Long.MAX_VALUE;
+	}
+	
+	boolean isThrottling() {
+		return this.nsPerCycle > 0;
+	}
+	
+	/**
+	 * @return the retired cycle count at which {@link #sync(long)} should be called next
+	 */
+	long nextSyncCycles() {
+		return this.nextSyncCycles;
+	}
+	
+	/**
+	 * Re-anchors emulated time to now
+	 */
+	void rebase(long retiredCycles) {
+		this.epochNs = System.nanoTime();
+		this.epochCycles = retiredCycles;
+		this.nextSyncCycles = nsPerCycle > 0 ? retiredCycles + sliceCycles : Long.MAX_VALUE;
+	}
+	
+	/**
+	 * Called by the CPU thread at the end of a slice, sleeps until the wall-clock has 
+	 * caught up with the emulated time
+	 */
+	void sync(long retiredCycles) {
+		if (nsPerCycle <= 0) {
+			this.nextSyncCycles = Long.MAX_VALUE;
+			return;
+		}
+		if (this.sliceNs != this.appliedSliceNs) {
+			this.updateSliceCycles(); // changed by another thread, applies from the next slice
+		}
+		long emulatedNs = (long) ((retiredCycles - epochCycles) * nsPerCycle);
+		long target = epochNs + emulatedNs;
+		long now;
+		while ((now = System.nanoTime()) < target) {
+			LockSupport.parkNanos(target - now);
+		}
+		long elapsedNs = now - epochNs;
+		this.driftNs = elapsedNs - emulatedNs;
+		if (elapsedNs > 0) {
+			this.effectiveHz = (retiredCycles - epochCycles) * 1_000_000_000.0 / elapsedNs;
+		}
+		if (this.driftNs > MAX_LAG_NS) {
+			// way behind, do not try to catch up
+			this.forgivenNs += this.driftNs;
+			this.rebase(retiredCycles);
+			return;
+		}
+		this.nextSyncCycles = retiredCycles + sliceCycles;
+	}
+	
+	/**
+	 * @return how far the wall-clock was ahead of the emulated time at the last slice
+	 * (positive = the host can not keep up with the frequency)
+	 */
+	public long getDriftNs() {
+		return this.driftNs;
+	}
+	
+	/**
+	 * @return the total lag (in ns) that was given up on because the host fell too far behind
+	 */
+	public long getForgivenLagNs() {
+		return this.forgivenNs;
+	}
+	
+	/**
+	 * @return the measured average frequency since the last re-anchoring
+	 */
+	public double getEffectiveFrequencyHz() {
+		return this.effectiveHz;
+	}
+}
@@ -49,7 +49,8 @@ public abstract class AbstractMMIODevice implements MMIODevice {
 		return mmio.emulator;
 	}
 	
-	public synchronized void interrupt(int code) {
+	// raises the IRQ line from any thread, the CPU takes it between instructions
+	public void interrupt(int code) {
 		mmio.emulator.hardwareIRQ(code);
 	}
 }
\ No newline at end of file
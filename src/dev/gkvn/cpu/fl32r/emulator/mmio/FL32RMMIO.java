@@ -10,18 +10,68 @@ public final class FL32RMMIO {
 	public static final int MMIO_BASIC_REGION_SIZE = 4096;
 	public static final int MMIO_REGION_SIZE = 128 * 1024 * 1024;
 	
+	// dispatch granularity, devices must be mapped on page boundaries
+	public static final int MMIO_PAGE_SHIFT = 12;
+	public static final int MMIO_PAGE_SIZE = 1 << MMIO_PAGE_SHIFT;
+	
 	protected FL32REmulator emulator;
 	private final List<MMIODevice> devices = new ArrayList<>();
+	// one entry per 4 KB page of the MMIO window, null = unmapped
+	private final Mapping[] pageTable = new Mapping[MMIO_REGION_SIZE >>> MMIO_PAGE_SHIFT];
+	// device that served the previous access, guests tend to hammer one device at a time
+	private Mapping lastHit;
 	
 	public FL32RMMIO(FL32REmulator emulator) {
 		this.emulator = emulator;
 	}
 	
 	public <T extends MMIODevice> T register(T device) {
+		int base = device.getBaseAddress();
+		int size = device.getSize();
+		if (base < 0 || size <= 0 || (long) base + size > MMIO_REGION_SIZE) {
+			throw new IllegalArgumentException(String.format(
+				"MMIO device %s @ 0x%X (size 0x%X) is outside the MMIO window",
+				device.getClass().getSimpleName(), base, size
+			));
+		}
+		if ((base & (MMIO_PAGE_SIZE - 1)) != 0 || (size & (MMIO_PAGE_SIZE - 1)) != 0) {
+			throw new IllegalArgumentException(String.format(
+				"MMIO device %s @ 0x%X (size 0x%X) is not aligned to %d bytes",
+				device.getClass().getSimpleName(), base, size, MMIO_PAGE_SIZE
+			));
+		}
+		int first = base >>> MMIO_PAGE_SHIFT;
+		int last = (base + size - 1) >>> MMIO_PAGE_SHIFT;
+		for (int page = first; page <= last; page++) {
+			Mapping taken = pageTable[page];
+			if (taken != null) {
+				throw new IllegalStateException(String.format(
+					"MMIO device %s @ 0x%X overlaps %s @ 0x%X",
+					device.getClass().getSimpleName(), base,
+					taken.device.getClass().getSimpleName(), taken.base
+				));
+			}
+		}
+		Mapping mapping = new Mapping(base, base + size, device);
+		for (int page = first; page <= last; page++) {
+			pageTable[page] = mapping;
+		}
 		devices.add(device);
 		return device;
 	}
 	
+	public void idle() {
+		for (MMIODevice d : devices) {
+			d.idle();
+		}
+	}
+	
+	public void shutdown() {
+		for (MMIODevice d : devices) {
+			d.shutdown();
+		}
+	}
+	
 	public byte readByte(int address) {
 		return (byte)(this.read(address, false) & 0xFF);
 	}
@@ -38,13 +88,26 @@ public final class FL32RMMIO {
 		this.write(address, true, word);
 	}
 	
+	private MMIODevice lookup(int address) {
+		Mapping m = lastHit;
+		if (m != null && address >= m.base && address < m.end) {
+			return m.device;
+		}
+		if (address < 0 || address >= MMIO_REGION_SIZE) {
+			return null;
+		}
+		m = pageTable[address >>> MMIO_PAGE_SHIFT];
+		if (m == null) {
+			return null;
+		}
+		lastHit = m;
+		return m.device;
+	}
+	
 	int read(int address, boolean isWord) {
-		for (MMIODevice d : devices) {
-			if (address >= d.getBaseAddress() 
-			 && address < d.getBaseAddress() + d.getSize()
-			) {
-				return isWord ? d.readWord(address) : d.readByte(address);
-			}
+		MMIODevice d = lookup(address);
+		if (d != null) {
+			return isWord ? d.readWord(address) : d.readByte(address);
 		}
 		emulator.warn("MMIO %s READ @ 0x%X (=0x%08X) is not mapped to any devices", 
 			(isWord ? "WORD" : "BYTE"), 
@@ -54,17 +117,14 @@ public final class FL32RMMIO {
 	}
 	
 	void write(int address, boolean isWord, int value) {
-		for (MMIODevice d : devices) {
-			if (address >= d.getBaseAddress() 
-			 && address < d.getBaseAddress() + d.getSize()
-			) {
-				if (isWord) {
-					d.writeWord(address, value);
-				} else {
-					d.writeByte(address, (byte)(value & 0xFF));
-				}
-				return;
+		MMIODevice d = lookup(address);
+		if (d != null) {
+			if (isWord) {
+				d.writeWord(address, value);
+			} else {
+				d.writeByte(address, (byte)(value & 0xFF));
 			}
+			return;
 		}
 		emulator.warn("MMIO %s WRITE @ 0x%X (=0x%08X) is not mapped to any devices", 
 			(isWord ? "WORD" : "BYTE"), 
@@ -80,4 +140,7 @@ public final class FL32RMMIO {
 	    mmioAddressCursor += MMIO_BASIC_REGION_SIZE;
 	    return baseAddress;
 	}
+	
+	// immutable so the last-hit cache can be swapped with a single reference write
+	private record Mapping(int base, int end, MMIODevice device) {}
 }
@@ -9,4 +9,10 @@ public interface MMIODevice {
 	
 	void writeWord(int address, int value);
 	void writeByte(int address, byte value);
+	
+	// called when the CPU goes idle (HLT, paused), for housekeeping that can wait
+	default void idle() {}
+	
+	// called once when the CPU is killed, release/flush host resources here
+	default void shutdown() {}
 }
\ No newline at end of file
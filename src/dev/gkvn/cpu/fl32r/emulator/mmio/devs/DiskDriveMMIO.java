@@ -4,9 +4,18 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import dev.gkvn.cpu.fl32r.emulator.mmio.AbstractMMIODevice;
 import dev.gkvn.cpu.fl32r.emulator.mmio.FL32RMMIO;
+import dev.gkvn.cpu.fl32r.emulator.mmio.devs.disk.CachedDiskStore;
+import dev.gkvn.cpu.fl32r.emulator.mmio.devs.disk.DiskBackingStore;
+import dev.gkvn.cpu.fl32r.emulator.mmio.devs.disk.MappedDiskStore;
+import dev.gkvn.cpu.fl32r.emulator.mmio.devs.disk.OverlayDiskStore;
+import dev.gkvn.cpu.fl32r.emulator.mmio.devs.disk.RawDiskStore;
+import dev.gkvn.cpu.fl32r.emulator.mmio.devs.disk.SparseDiskStore;
 import dev.gkvn.cpu.utils.ByteMemorySpace;
 
 public final class DiskDriveMMIO extends AbstractMMIODevice {
@@ -31,7 +40,8 @@ public final class DiskDriveMMIO extends AbstractMMIODevice {
 	private static final int
 		DISK_CMD_READ     = 0x00,
 		DISK_CMD_WRITE    = 0x01,
-		DISK_CMD_IDENTIFY = 0x02
+		DISK_CMD_IDENTIFY = 0x02,
+		DISK_CMD_FLUSH    = 0x03 // make every completed write durable
 	;
 	
 	// status bits
@@ -43,27 +53,30 @@ public final class DiskDriveMMIO extends AbstractMMIODevice {
 	
 	// status bits
 	private static final int 
-		DISK_CTL_IRQ_ENABLE = 1 << 0
+		DISK_CTL_IRQ_ENABLE = 1 << 0,
+		DISK_CTL_ASYNC = 1 << 1 // commands run in the background, BUSY until done
 	;
 	
 	// java stuff
-	private final RandomAccessFile disk;
+	private final DiskBackingStore store; // DMA goes straight between this and the RAM
+	private final CachedDiskStore cache; // the store itself when caching is on, null otherwise
 	private final EmulatedVirtualDisk evdk;
 	
 	// disk internal data
 	private final long totalSectors; // logical block address (aka sector)
 	private final long diskSize; // in bytes
 	private int deviceControl;
-	private int regStatus = DISK_STATUS_READY;
+	private volatile int regStatus = DISK_STATUS_READY; // written by the I/O worker in async mode
 	// current cmd registers
 	private int regLBA;
 	private int regSectorCount;
 	private int regDMAAddress;
 	private int regDMALength;
+	// async mode, one worker so commands complete in order (created on first use)
+	private ExecutorService ioWorker;
 
 	public DiskDriveMMIO(FL32RMMIO mmio, int base, EmulatedVirtualDisk evdk) {
 		super(mmio, base, FL32RMMIO.MMIO_BASIC_REGION_SIZE);
-		Path host = evdk.backingFile();
 		// initial checks (evdk format)
 		if (evdk.brand().length() > 16) {
 			throw new IllegalArgumentException("EVDK brand name too long");
@@ -78,6 +91,19 @@ public final class DiskDriveMMIO extends AbstractMMIODevice {
 			throw new IllegalArgumentException("EVDK firmware version too long");
 		}
 		
+		this.store = openImage(evdk);
+		this.cache = store instanceof CachedDiskStore c ? c : null;
+		this.diskSize = store.size();
+		this.totalSectors = this.diskSize / SECTOR_SIZE;
+		this.evdk = evdk;
+	}
+	
+	/**
+	 * Validates and opens the image of evdk with its storage options applied, 
+	 * shared by the disk controllers
+	 */
+	static DiskBackingStore openImage(EmulatedVirtualDisk evdk) {
+		Path host = evdk.backingFile();
 		if (!host.toString().endsWith(".evdk")) {
 			throw new IllegalArgumentException("EVDK backing file must end with .evdk: " + host);
 		}
@@ -89,19 +115,53 @@ public final class DiskDriveMMIO extends AbstractMMIODevice {
 		} else {
 			throw new RuntimeException("Specified EVDK path not found: " + host);
 		}
-		// open the file as a random access thingy (ofc)
+		// open the file, mapped, as a random access thingy (ofc) or behind an overlay
+		DiskBackingStore image;
 		try {
-			this.disk = new RandomAccessFile(host.toFile(), "rw");
-			this.diskSize = disk.length();
+			image = openStore(evdk);
 		} catch (IOException e) {
 			throw new RuntimeException("Failed to open EVDK backing file: " + host, e);
 		}
 		// prevent stupid disks
-		if (this.diskSize % SECTOR_SIZE != 0) {
+		if (image.size() % SECTOR_SIZE != 0) {
 			throw new RuntimeException("Invalid EVDK: size not aligned to 512B sectors");
 		}
-		this.totalSectors = this.diskSize / SECTOR_SIZE;
-		this.evdk = evdk;
+		return evdk.cacheSectors() > 0 ? new CachedDiskStore(image, evdk.cacheSectors()) : image;
+	}
+	
+	/**
+	 * Lets the work queued on worker (null if it never started) finish, then closes the image
+	 * (which flushes it), shared by the disk controllers
+	 */
+	static void closeImage(AbstractMMIODevice device, ExecutorService worker, DiskBackingStore store) {
+		try {
+			if (worker != null) {
+				worker.shutdown();
+				worker.awaitTermination(5, TimeUnit.SECONDS);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			store.close(); // flushes
+		} catch (IOException e) {
+			device.getEmulator().warn("Failed to flush EVDK backing file: %s", e.getMessage());
+		}
+	}
+	
+	private static DiskBackingStore openStore(EmulatedVirtualDisk evdk) throws IOException {
+		Path host = evdk.backingFile();
+		// the format is never guessed from the contents: sector 0 of a raw image is the guest's to write
+		boolean sparse = evdk.sparse();
+		if (evdk.overlayFile() != null) {
+			// the base stays untouched (and shareable), writes land in the overlay
+			DiskBackingStore base = sparse ? SparseDiskStore.open(host, true) : RawDiskStore.openReadOnly(host);
+			return OverlayDiskStore.open(evdk.overlayFile(), base);
+		}
+		if (sparse) {
+			return SparseDiskStore.open(host, false); // nothing to map, the clusters move around
+		}
+		return evdk.memoryMapped() ? MappedDiskStore.open(host) : RawDiskStore.open(host);
 	}
 	
 	@Override
@@ -129,29 +189,25 @@ public final class DiskDriveMMIO extends AbstractMMIODevice {
 			case REG_DMA_LENGTH -> regDMALength = value;
 			case REG_DISK_COMMAND -> {
 				// ignore commands while doing shit
-				if ((this.regStatus & DISK_STATUS_BUSY) != 0) {
+				if (this.regStatus == DISK_STATUS_BUSY) {
 					return;
 				}
-				try {
-					boolean irqEnabled = (deviceControl & DISK_CTL_IRQ_ENABLE) == 1;
-					switch (value) {
-						case DISK_CMD_READ -> {
-							doRead();
-							if (irqEnabled) interrupt(DISK_IRQ);
-						}
-						case DISK_CMD_WRITE -> {
-							doWrite();
-							if (irqEnabled) interrupt(DISK_IRQ);
-						}
-						case DISK_CMD_IDENTIFY -> {
-							doIdentify();
-							if (irqEnabled) interrupt(DISK_IRQ);
-						}
-						default -> regStatus = DISK_STATUS_ERROR;
-					}
-				} catch (IOException e) {
-					// java being java
-					regStatus = DISK_STATUS_ERROR;
+				// latch parameters
+				DiskCommand cmd = new DiskCommand(
+					value,
+					Integer.toUnsignedLong(regLBA),
+					regSectorCount,
+					regDMAAddress,
+					regDMALength,
+					(deviceControl & DISK_CTL_IRQ_ENABLE) != 0
+				);
+				// job started
+				this.regStatus = DISK_STATUS_BUSY;
+				if ((deviceControl & DISK_CTL_ASYNC) != 0) {
+					// the guest keeps running, it polls BUSY or waits for the IRQ
+					ioWorker().execute(() -> execute(cmd));
+				} else {
+					execute(cmd);
 				}
 			}
 			// readonly registers ignored
@@ -159,6 +215,34 @@ public final class DiskDriveMMIO extends AbstractMMIODevice {
 		}
 	}
 	
+	private void execute(DiskCommand cmd) {
+		try {
+			switch (cmd.command()) {
+				case DISK_CMD_READ -> doRead(cmd);
+				case DISK_CMD_WRITE -> doWrite(cmd);
+				case DISK_CMD_IDENTIFY -> doIdentify(cmd);
+				case DISK_CMD_FLUSH -> doFlush();
+				default -> regStatus = DISK_STATUS_ERROR;
+			}
+		} catch (IOException | RuntimeException e) {
+			// java being java
+			regStatus = DISK_STATUS_ERROR;
+		}
+		// completion (either way), the guest checks the status
+		if (cmd.irqEnabled()) interrupt(DISK_IRQ);
+	}
+	
+	private synchronized ExecutorService ioWorker() {
+		if (ioWorker == null) {
+			ioWorker = Executors.newSingleThreadExecutor(r -> {
+				Thread t = new Thread(r, "FL32R-Disk-IO");
+				t.setDaemon(true); // never keeps the VM alive
+				return t;
+			});
+		}
+		return ioWorker;
+	}
+	
 	private static final int
 		IDENT_SECTOR_SIZE   = 0x00,
 		IDENT_SECTOR_COUNT  = 0x04,
@@ -181,12 +265,8 @@ public final class DiskDriveMMIO extends AbstractMMIODevice {
 		 * } DISK_IDENTIFY;
 		 */
 	;
-	private void doIdentify() {
-		// latch parameters
-		int dmaAddr = regDMAAddress;
-		
-		// job started
-		this.regStatus = DISK_STATUS_BUSY;
+	private void doIdentify(DiskCommand cmd) {
+		int dmaAddr = cmd.dmaAddr();
 		
 		ByteMemorySpace ram = getEmulator().getMemory(); // literally DMA
 		ram.set32(dmaAddr + IDENT_SECTOR_SIZE, SECTOR_SIZE);
@@ -203,76 +283,99 @@ public final class DiskDriveMMIO extends AbstractMMIODevice {
 	}
 	
 	private void writeString(ByteMemorySpace mem, int bufLen, char src[], long dest) {
-		for (int i = 0; i < bufLen; i++) {
-			byte toWrite;
-			if (i >= src.length) {
-				toWrite = 0x00;
-			} else {
-				toWrite = (byte) src[i];
-			}
-			mem.set(dest + i, toWrite);
+		byte[] field = new byte[bufLen]; // zero padded
+		for (int i = 0; i < bufLen && i < src.length; i++) {
+			field[i] = (byte) src[i];
 		}
+		mem.copyFrom(field, 0, dest, bufLen);
 	}
 	
-	private void doRead() throws IOException {
-	    // latch parameters
-		long lba    = Integer.toUnsignedLong(regLBA);
-		int sectors = regSectorCount;
-		int dmaAddr = regDMAAddress;
-		int dmaLen  = regDMALength;
+	private void doRead(DiskCommand cmd) throws IOException {
+		long lba    = cmd.lba();
+		int sectors = cmd.sectors();
+		int dmaAddr = cmd.dmaAddr();
+		int dmaLen  = cmd.dmaLen();
 	    
-		// job started
-		this.regStatus = DISK_STATUS_BUSY;
-		
-		if (!sanityChecks(lba, sectors, dmaLen)) {
+		if (!sanityChecks(lba, sectors, dmaAddr, dmaLen)) {
 			// job failed
 			this.regStatus = DISK_STATUS_ERROR;
 			return;
 		}
 
-		byte[] buf = new byte[dmaLen];
+		// literally DMA, the sectors land in guest memory without a staging copy
 		ByteMemorySpace ram = getEmulator().getMemory();
-		
-		disk.seek(lba * SECTOR_SIZE);
-		disk.readFully(buf);
-		for (int i = 0; i < buf.length; i++) {
-			ram.set(dmaAddr + i, buf[i]);
-		}
+		store.read(lba * SECTOR_SIZE, ram, Integer.toUnsignedLong(dmaAddr), dmaLen);
 		
 		// finished the job
 		this.regStatus = DISK_STATUS_READY;
 	}
 	
-	private void doWrite() throws IOException {
-	    // latch parameters
-		long lba    = Integer.toUnsignedLong(regLBA);
-		int sectors = regSectorCount;
-		int dmaAddr = regDMAAddress;
-		int dmaLen  = regDMALength;
+	private void doWrite(DiskCommand cmd) throws IOException {
+		long lba    = cmd.lba();
+		int sectors = cmd.sectors();
+		int dmaAddr = cmd.dmaAddr();
+		int dmaLen  = cmd.dmaLen();
 	    
-		// job started
-		this.regStatus = DISK_STATUS_BUSY;
-		
-		if (!sanityChecks(lba, sectors, dmaLen)) {
+		if (!sanityChecks(lba, sectors, dmaAddr, dmaLen)) {
 			// job failed
 			this.regStatus = DISK_STATUS_ERROR;
 			return;
 		}
 		
-		byte[] buf = new byte[dmaLen];
 		ByteMemorySpace ram = getEmulator().getMemory();
+		store.write(lba * SECTOR_SIZE, ram, Integer.toUnsignedLong(dmaAddr), dmaLen);
 		
-		for (int i = 0; i < buf.length; i++) {
-			buf[i] = ram.get(dmaAddr + i);
-		}
-		disk.seek(lba * SECTOR_SIZE);
-		disk.write(buf);
+		// finished the job
+		this.regStatus = DISK_STATUS_READY;
+	}
+	
+	private void doFlush() throws IOException {
+		store.flush();
 		
 		// finished the job
 		this.regStatus = DISK_STATUS_READY;
 	}
 	
-	private boolean sanityChecks(long lba, int sectors, int dmaLen) {
+	/**
+	 * Writes back the sector cache in the background while the guest has nothing to do,
+	 * durability (fsync) is left to the guest's FLUSH and to shutdown
+	 */
+	@Override
+	public void idle() {
+		if (cache == null || !cache.isDirty()) return;
+		ioWorker().execute(() -> {
+			try {
+				cache.writeBack();
+			} catch (IOException e) {
+				getEmulator().warn("Failed to write back the disk cache: %s", e.getMessage());
+			}
+		});
+	}
+	
+	/**
+	 * Sector cache statistics for the host (0 when caching is off)
+	 */
+	public long getCacheHits() {
+		return cache != null ? cache.getHits() : 0;
+	}
+	
+	public long getCacheMisses() {
+		return cache != null ? cache.getMisses() : 0;
+	}
+	
+	/**
+	 * Lets queued commands finish, then flushes and closes the image
+	 */
+	@Override
+	public void shutdown() {
+		ExecutorService worker;
+		synchronized (this) {
+			worker = this.ioWorker;
+		}
+		closeImage(this, worker, store);
+	}
+	
+	private boolean sanityChecks(long lba, int sectors, int dmaAddr, int dmaLen) {
 		if (lba < 0 || sectors <= 0) {
 			return false;
 		}
@@ -282,17 +385,42 @@ public final class DiskDriveMMIO extends AbstractMMIODevice {
 		if (dmaLen != sectors * SECTOR_SIZE) {
 			return false;
 		}
+		// the whole buffer must be in RAM
+		if (Integer.toUnsignedLong(dmaAddr) + dmaLen > getEmulator().getMemory().length()) {
+			return false;
+		}
 		return true;
 	}
 	
-	public static record EmulatedVirtualDisk(
-		Path   backingFile,
-		String brand,
-		String model,
-		String serialNum,
-		String firmwareVer
+	private static record DiskCommand(
+		int     command,
+		long    lba,
+		int     sectors,
+		int     dmaAddr,
+		int     dmaLen,
+		boolean irqEnabled
 	) {}
 	
+	public static record EmulatedVirtualDisk(
+		Path    backingFile,
+		String  brand,
+		String  model,
+		String  serialNum,
+		String  firmwareVer,
+		boolean memoryMapped, // map the image instead of doing file I/O per command
+		Path    overlayFile, // copy-on-write delta over a read-only backingFile (null = write the image itself)
+		int     cacheSectors, // write-back LRU sector cache size (0 = every command goes to the image)
+		boolean sparse // backingFile is a sparse image (see manifestSparseEVDK), false = raw
+	) {
+		public EmulatedVirtualDisk(Path backingFile, String brand, String model, String serialNum, String firmwareVer) {
+			this(backingFile, brand, model, serialNum, firmwareVer, false, null, 0, false);
+		}
+		
+		public EmulatedVirtualDisk(Path backingFile, String brand, String model, String serialNum, String firmwareVer, boolean memoryMapped) {
+			this(backingFile, brand, model, serialNum, firmwareVer, memoryMapped, null, 0, false);
+		}
+	}
+	
 	public static Path manifestEVDK(long capacityBytes, String fileName) {
 		if (capacityBytes <= 0) {
 			throw new IllegalArgumentException("Disk capacity must be > 0");
@@ -318,4 +446,28 @@ public final class DiskDriveMMIO extends AbstractMMIODevice {
 		}
 		return path;
 	}
+	
+	/**
+	 * Like {@link #manifestEVDK(long, String)}, but creates a sparse image (storage is allocated per 64 KB 
+	 * cluster on first write, optionally deflate compressed). Attach it with {@link EmulatedVirtualDisk#sparse()} set, 
+	 * the format is not detected.
+	 */
+	public static Path manifestSparseEVDK(long capacityBytes, String fileName, boolean compressed) {
+		if (!fileName.endsWith(".evdk")) {
+			throw new IllegalArgumentException("Virtual disk file must end with .evdk");
+		}
+		Path path = Path.of(fileName);
+		if (Files.exists(path)) {
+			if (!Files.isRegularFile(path)) {
+				throw new IllegalArgumentException("Path exists but is not a regular file: " + path);
+			}
+			return path;
+		}
+		try {
+			SparseDiskStore.create(path, capacityBytes, compressed).close();
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to create virtual disk file: " + path, e);
+		}
+		return path;
+	}
 }
\ No newline at end of file
@@ -1,11 +1,20 @@
 package dev.gkvn.cpu.fl32r.emulator.mmio.devs;
 
+import dev.gkvn.cpu.fl32r.emulator.FL32REventScheduler;
+import dev.gkvn.cpu.fl32r.emulator.FL32REventScheduler.Event;
 import dev.gkvn.cpu.fl32r.emulator.mmio.AbstractMMIODevice;
 import dev.gkvn.cpu.fl32r.emulator.mmio.FL32RMMIO;
 
 public final class HardwareTimerMMIO extends AbstractMMIODevice {
 	public static final int TIMER_IRQ = 0x00;
 	
+	/*
+	 * The IRQ is raised ONCE per deadline (the CPU keeps it pending while interrupts are masked),
+	 * the next one is armed by:
+	 * - writing COMPARE: new deadline = counter + value (also the way to re-arm a one-shot timer)
+	 * - CTRL_IRQ_ACK in periodic mode: the deadline moves one period on
+	 * An ack in one-shot mode does not re-fire the spent deadline.
+	 */
 	public static final int 
 		REG_COUNT_LO = 0x00,
 		REG_COUNT_HI = 0x04,
@@ -17,16 +26,30 @@ public final class HardwareTimerMMIO extends AbstractMMIODevice {
 		CTRL_ENABLE = 1 << 0, // timer running
 		CTRL_IRQ_ENABLE = 1 << 1, // raise IRQ on compare
 		CTRL_PERIODIC = 1 << 2, // auto reload
-		CTRL_IRQ_ACK = 1 << 3, // W1C: clear IRQ
+		CTRL_IRQ_ACK = 1 << 3, // W1C: ack the IRQ (periodic: on to the next deadline)
 		CTRL_RESET = 1 << 4 // W1C: reset counter
 	;
 		
 	// flagkeeper
 	private long startTimeNs;
 	
+	// virtual time: the counter follows the emulated clock (retired cycles) instead of the host's,
+	// runs are reproducible and the deadline is an event at the precomputed firing cycle
+	private boolean virtualTime = false;
+	private long epochCycles; // counter == epochUs at epochCycles
+	private long epochUs;
+	private int epochHz; // CPU frequency the epoch was taken at
+	private long fireAtCycles = Long.MAX_VALUE;
+	
+	// host time can not be scheduled on the emulated clock, so it is polled every few thousand cycles 
+	// while armed (a halted CPU sleeps on nanosUntilDeadline() instead)
+	public static final long HOST_POLL_CYCLES = 4096;
+	private final Event deadlineEvent = new Event("timer", this::deadlineReached);
+	private final Event pollEvent = new Event("timer-poll", this::pollTick);
+	
 	private boolean enabled = false;
 	private boolean irqEnabled = false;
-	private boolean irqPending = false;
+	private boolean irqPending = false; // raised for the current deadline, see the notes above
 	
 	// period setting
 	private long deadlineUs = Long.MAX_VALUE; // us = microsec
@@ -36,13 +59,113 @@ public final class HardwareTimerMMIO extends AbstractMMIODevice {
 	// microsecond timer
 	public HardwareTimerMMIO(FL32RMMIO mmio, int base) {
 		super(mmio, base, FL32RMMIO.MMIO_BASIC_REGION_SIZE);
+		this.deadlineEvent.setWakeup(true);
 		this.resetCounter(); // doubles as an init
 	}
 
 	private long counter() {
+		if (virtualTime) {
+			return virtualCounter(getEmulator().getRetiredCycles());
+		}
 		return (System.nanoTime() - startTimeNs) / 1_000L; // ns to microsec
 	}
 	
+	private long virtualCounter(long cycles) {
+		int hz = frequencyHz();
+		if (hz != epochHz) {
+			// frequency changed, the counter carries on from where it is at the new rate
+			this.epochUs = cyclesToUs(cycles, epochHz);
+			this.epochCycles = cycles;
+			this.epochHz = hz;
+		}
+		return cyclesToUs(cycles, hz);
+	}
+	
+	private int frequencyHz() {
+		return Math.max(1, getEmulator().getFrequencyHz()); // 0 hz would never count anyway
+	}
+	
+	private long cyclesToUs(long cycles, int hz) {
+		long elapsed = cycles - epochCycles;
+		// split to never overflow
+		return epochUs + (elapsed / hz) * 1_000_000L + (elapsed % hz) * 1_000_000L / hz;
+	}
+	
+	/**
+	 * Switches the counter between the host clock (default) and the emulated clock, 
+	 * the counter keeps its current value. Takes effect on the CPU thread.
+	 */
+	public void setVirtualTime(boolean virtualTime) {
+		getEmulator().runOnCPUThread(() -> switchClock(virtualTime));
+	}
+	
+	private void switchClock(boolean virtualTime) {
+		if (virtualTime == this.virtualTime) {
+			return;
+		}
+		long now = counter();
+		this.virtualTime = virtualTime;
+		this.startTimeNs = System.nanoTime() - now * 1_000L;
+		this.epochCycles = getEmulator().getRetiredCycles();
+		this.epochUs = now;
+		this.epochHz = frequencyHz();
+		this.updateFireAt();
+	}
+	
+	public boolean isVirtualTime() {
+		return virtualTime;
+	}
+	
+	/**
+	 * The CPU frequency changed, a virtual time deadline falls on another cycle now. CPU thread only
+	 */
+	public void frequencyChanged() {
+		if (virtualTime) {
+			this.updateFireAt();
+		}
+	}
+	
+	private boolean armed() {
+		return enabled && irqEnabled && !irqPending && deadlineUs != Long.MAX_VALUE;
+	}
+	
+	// schedules the deadline (virtual time) or the polling (host time), whenever the setup changed
+	private void updateFireAt() {
+		FL32REventScheduler scheduler = getEmulator().getScheduler();
+		if (!virtualTime) {
+			this.fireAtCycles = Long.MAX_VALUE;
+			scheduler.cancel(deadlineEvent);
+			if (armed()) {
+				scheduler.schedule(pollEvent, getEmulator().getRetiredCycles() + 1); // check right away
+			} else {
+				scheduler.cancel(pollEvent);
+			}
+			return;
+		}
+		scheduler.cancel(pollEvent);
+		this.fireAtCycles = computeFireAt();
+		scheduler.schedule(deadlineEvent, fireAtCycles);
+	}
+	
+	// first cycle at which the counter is past the deadline (virtual time)
+	private long computeFireAt() {
+		if (!armed()) {
+			return Long.MAX_VALUE;
+		}
+		long cycles = getEmulator().getRetiredCycles();
+		long now = virtualCounter(cycles); // rebases on frequency changes
+		if (now > deadlineUs) {
+			return cycles; // already due
+		}
+		// counter > deadline  <=>  elapsed cycles >= ceil((deadline + 1 - epochUs) * hz / 1e6)
+		long us = deadlineUs + 1 - epochUs;
+		long hz = epochHz;
+		if (us > Long.MAX_VALUE / hz) {
+			return Long.MAX_VALUE; // way past anything that will ever run
+		}
+		return epochCycles + (us * hz + 999_999L) / 1_000_000L;
+	}
+	
 	@Override
 	public int readWord(int address) {
 		long cnt = counter();
@@ -61,19 +184,24 @@ public final class HardwareTimerMMIO extends AbstractMMIODevice {
 				long period = Integer.toUnsignedLong(value);
 				this.periodUs = period;
 				this.deadlineUs = counter() + period;
+				this.irqPending = false; // a new deadline, armed again
+				this.updateFireAt();
 			}
 			case REG_CTRL -> {
 				// W1C semantics
 				if ((value & CTRL_RESET) != 0) {
 					resetCounter();
 				}
-				if ((value & CTRL_IRQ_ACK) != 0) {
-					this.irqPending = false;
-				}
+				boolean ack = (value & CTRL_IRQ_ACK) != 0;
 				// persistent controls
 				enabled = (value & CTRL_ENABLE) != 0;
 				irqEnabled = (value & CTRL_IRQ_ENABLE) != 0;
 				periodic = (value & CTRL_PERIODIC) != 0;
+				if (ack) {
+					this.irqAck(); // rearms (updateFireAt)
+				} else {
+					this.updateFireAt();
+				}
 			}
 		}
 	}
@@ -81,27 +209,70 @@ public final class HardwareTimerMMIO extends AbstractMMIODevice {
 	// completely rewrites the shit
 	private void resetCounter() {
 		this.startTimeNs = System.nanoTime();
+		this.epochCycles = getEmulator().getRetiredCycles();
+		this.epochUs = 0;
+		this.epochHz = frequencyHz();
 		this.deadlineUs = Long.MAX_VALUE;
 		this.periodUs = 0;
 		this.irqPending = false;
 		this.enabled = false;
 		this.irqEnabled = false;
 		this.periodic = false;
+		this.updateFireAt();
 	}
 	
-	// the software must acknowledges before the next IRQ can fire
+	// the software acknowledges the IRQ, a periodic timer moves on to its next deadline
 	public void irqAck() {
-		if (periodic) {
+		if (irqPending && periodic) {
 			this.deadlineUs += periodUs;
+			this.irqPending = false;
+		}
+		this.updateFireAt();
+	}
+	
+	/**
+	 * @return how long (host time) until the next IRQ is due (0 if it already is), 
+	 * Long.MAX_VALUE if no IRQ is going to fire or the timer runs on virtual time 
+	 * (its deadline is a scheduler event then)
+	 */
+	public long nanosUntilDeadline() {
+		if (virtualTime || !armed()) {
+			return Long.MAX_VALUE;
+		}
+		// fires once the counter is past the deadline
+		return Math.max(0, (deadlineUs + 1 - counter()) * 1_000L);
+	}
+	
+	// fires once per deadline, the CPU latches the IRQ (masked or not)
+	private void fire() {
+		this.irqPending = true;
+		this.interrupt(TIMER_IRQ);
+		this.updateFireAt(); // disarmed
+	}
+	
+	private void deadlineReached(long retiredCycles) {
+		if (virtualCounter(retiredCycles) > deadlineUs) {
+			this.fire();
+		} else {
+			this.updateFireAt(); // scheduled at another frequency, not there yet
+		}
+	}
+	
+	private void pollTick(long retiredCycles) {
+		if (!pollHostClock()) {
+			getEmulator().getScheduler().schedule(pollEvent, retiredCycles + HOST_POLL_CYCLES);
 		}
-		this.irqPending = false;
 	}
 	
-	public void tick() {
-		if (!enabled || irqPending) return;
-		// fire IRQ (if enabled) on the next deadline
-		if (irqEnabled && counter() > deadlineUs) {
-			this.interrupt(TIMER_IRQ);
+	/**
+	 * Fires the IRQ if the host-time deadline passed, CPU thread only
+	 * @return true if it did
+	 */
+	public boolean pollHostClock() {
+		if (virtualTime || !armed() || counter() <= deadlineUs) {
+			return false;
 		}
+		this.fire();
+		return true;
 	}
 }
\ No newline at end of file
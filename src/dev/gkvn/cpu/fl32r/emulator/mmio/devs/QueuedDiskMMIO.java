@@ -0,0 +1,312 @@
+package dev.gkvn.cpu.fl32r.emulator.mmio.devs;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import dev.gkvn.cpu.fl32r.emulator.mmio.AbstractMMIODevice;
+import dev.gkvn.cpu.fl32r.emulator.mmio.FL32RMMIO;
+import dev.gkvn.cpu.fl32r.emulator.mmio.devs.DiskDriveMMIO.EmulatedVirtualDisk;
+import dev.gkvn.cpu.fl32r.emulator.mmio.devs.disk.DiskBackingStore;
+import dev.gkvn.cpu.utils.ByteMemorySpace;
+
+/**
+ * Multi-queue disk controller. The guest puts request descriptors in rings in its own memory
+ * and rings a doorbell, the controller works through everything posted so far and raises a
+ * single DISK_IRQ for the whole batch.
+ * 
+ * Not part of the default machine, the host registers it (with an image of its own):
+ * <pre>
+ * bus.register(new QueuedDiskMMIO(bus, bus.allocateBasicNext(), evdk));
+ * </pre>
+ */
+public final class QueuedDiskMMIO extends AbstractMMIODevice {
+	private static final int SECTOR_SIZE = 512;
+	public  static final int DISK_IRQ = DiskDriveMMIO.DISK_IRQ; // shared line, check REG_IRQ_STATUS
+	public  static final int QUEUE_COUNT = 4;
+	public  static final int MAX_QUEUE_SIZE = 1024; // descriptors per ring
+	public  static final int MAX_SG_COUNT = 1024; // sg entries per request
+	
+	// register offsets
+	public static final int 
+		REG_DISK_ID      = 0x00,
+		REG_IRQ_STATUS   = 0x04, // W1C
+		REG_DISK_CONTROL = 0x08,
+		REG_QUEUE_SELECT = 0x0C, // the QUEUE_* registers below refer to this queue
+		REG_QUEUE_BASE   = 0x10, // ring address in guest memory
+		REG_QUEUE_SIZE   = 0x14, // in descriptors, power of 2 (0 = disabled)
+		REG_QUEUE_HEAD   = 0x18, // read-only, descriptors completed (free running)
+		REG_QUEUE_TAIL   = 0x1C, // descriptors posted (free running), writing it rings the doorbell
+		REG_SECTOR_COUNT = 0x20, // read-only
+		REG_QUEUE_COUNT  = 0x24  // read-only
+	;
+	
+	public static final int 
+		CTL_IRQ_ENABLE = 1 << 0,
+		CTL_ASYNC = 1 << 1, // process the rings in the background
+		IRQ_STATUS_COMPLETION = 1 << 0
+	;
+	
+	/**
+	 * typedef struct {
+	 *     uint32_t command;     // DISK_CMD_*
+	 *     uint32_t status;      // written by the device: REQ_STATUS_*
+	 *     uint32_t lba_lo;
+	 *     uint32_t lba_hi;
+	 *     uint32_t sg_address;  // -> sg_entry[sg_count]
+	 *     uint32_t sg_count;    // 1..MAX_SG_COUNT
+	 *     uint32_t transferred; // written by the device: bytes moved
+	 *     uint32_t tag;         // untouched, for the driver
+	 * } DISK_REQUEST;
+	 * 
+	 * typedef struct {
+	 *     uint32_t address;
+	 *     uint32_t length;      // multiple of 512
+	 * } sg_entry;
+	 */
+	private static final int 
+		DESC_COMMAND = 0x00,
+		DESC_STATUS = 0x04,
+		DESC_LBA_LO = 0x08,
+		DESC_LBA_HI = 0x0C,
+		DESC_SG_ADDRESS = 0x10,
+		DESC_SG_COUNT = 0x14,
+		DESC_TRANSFERRED = 0x18,
+		DESC_SIZE = 0x20,
+		SG_ENTRY_SIZE = 8
+	;
+	
+	public static final int 
+		DISK_CMD_READ = 0x00,
+		DISK_CMD_WRITE = 0x01,
+		DISK_CMD_FLUSH = 0x03
+	;
+	
+	public static final int 
+		REQ_STATUS_OK = 0x00,
+		REQ_STATUS_ERROR = 0x01,
+		REQ_STATUS_BAD_REQUEST = 0x02
+	;
+	
+	private final DiskBackingStore store;
+	private final long totalSectors;
+	private final Queue[] queues = new Queue[QUEUE_COUNT];
+	private int deviceControl;
+	private int queueSelect;
+	private volatile int irqStatus;
+	private ExecutorService ioWorker;
+	// one drainer at a time for the whole device, rings complete in order and the store (not thread-safe)
+	// sees a single caller, a sync doorbell (CPU thread) may ring while the worker drains another queue
+	private final Object drainLock = new Object();
+	
+	public QueuedDiskMMIO(FL32RMMIO mmio, int base, EmulatedVirtualDisk evdk) {
+		super(mmio, base, FL32RMMIO.MMIO_BASIC_REGION_SIZE);
+		this.store = DiskDriveMMIO.openImage(evdk);
+		this.totalSectors = store.size() / SECTOR_SIZE;
+		for (int i = 0; i < QUEUE_COUNT; i++) {
+			queues[i] = new Queue();
+		}
+	}
+	
+	@Override
+	public int readWord(int address) {
+		Queue q = queues[queueSelect];
+		int off = offset(address);
+		if (off >= REG_QUEUE_BASE && off <= REG_QUEUE_TAIL) {
+			// HEAD moves on the I/O worker, the lock also publishes the statuses it wrote
+			synchronized (q) {
+				return switch (off) {
+					case REG_QUEUE_BASE -> q.base;
+					case REG_QUEUE_SIZE -> q.size;
+					case REG_QUEUE_HEAD -> q.head;
+					default -> q.tail;
+				};
+			}
+		}
+		return switch (off) {
+			case REG_DISK_ID -> 0xBEEFD15C; // magic
+			case REG_IRQ_STATUS -> irqStatus;
+			case REG_DISK_CONTROL -> deviceControl;
+			case REG_QUEUE_SELECT -> queueSelect;
+			case REG_SECTOR_COUNT -> (int) Math.min(totalSectors, 0xFF_FF_FF_FFL);
+			case REG_QUEUE_COUNT -> QUEUE_COUNT;
+			default -> 0;
+		};
+	}
+	
+	@Override
+	public void writeWord(int address, int value) {
+		Queue q = queues[queueSelect];
+		switch (offset(address)) {
+			case REG_IRQ_STATUS -> clearIrqStatus(value);
+			case REG_DISK_CONTROL -> deviceControl = value;
+			case REG_QUEUE_SELECT -> queueSelect = Math.floorMod(value, QUEUE_COUNT);
+			case REG_QUEUE_BASE -> {
+				synchronized (q) {
+					q.base = value;
+				}
+			}
+			case REG_QUEUE_SIZE -> {
+				boolean valid = value >= 0 && value <= MAX_QUEUE_SIZE && Integer.bitCount(value) <= 1;
+				synchronized (q) {
+					// (re)configuring resets the ring
+					q.size = valid ? value : 0;
+					q.head = 0;
+					q.tail = 0;
+				}
+			}
+			case REG_QUEUE_TAIL -> {
+				synchronized (q) {
+					q.tail = value;
+				}
+				// doorbell
+				if ((deviceControl & CTL_ASYNC) != 0) {
+					ioWorker().execute(() -> drain(q));
+				} else {
+					drain(q);
+				}
+			}
+			// readonly registers ignored
+			default -> {}
+		}
+	}
+	
+	private synchronized void clearIrqStatus(int mask) {
+		irqStatus &= ~mask;
+	}
+	
+	private synchronized void raiseIrqStatus(int mask) {
+		irqStatus |= mask;
+	}
+	
+	// completes every posted descriptor of q, then one IRQ for the lot
+	private void drain(Queue q) {
+		int completed = 0;
+		synchronized (drainLock) {
+			while (true) {
+				int base, size, head, tail;
+				synchronized (q) {
+					base = q.base;
+					size = q.size;
+					head = q.head;
+					tail = q.tail;
+				}
+				if (size == 0 || head == tail) break;
+				// a tail too far ahead is a driver bug, only a ring's worth is in flight
+				if (Integer.compareUnsigned(tail - head, size) > 0) {
+					synchronized (q) {
+						q.head = tail; // drop it all rather than run over stale slots
+					}
+					break;
+				}
+				long desc = Integer.toUnsignedLong(base) + (long) (head & (size - 1)) * DESC_SIZE;
+				process(desc);
+				completed++;
+				synchronized (q) {
+					// the ring may have been reset meanwhile
+					if (q.head == head && q.size == size) q.head = head + 1;
+				}
+			}
+		}
+		if (completed > 0) {
+			raiseIrqStatus(IRQ_STATUS_COMPLETION);
+			if ((deviceControl & CTL_IRQ_ENABLE) != 0) {
+				interrupt(DISK_IRQ);
+			}
+		}
+	}
+	
+	private void process(long desc) {
+		ByteMemorySpace ram = getEmulator().getMemory();
+		if (desc + DESC_SIZE > ram.length()) {
+			return; // nowhere to report to
+		}
+		int status;
+		long transferred = 0;
+		try {
+			int command = ram.getInt(desc + DESC_COMMAND);
+			long lba = Integer.toUnsignedLong(ram.getInt(desc + DESC_LBA_LO)) 
+				| Integer.toUnsignedLong(ram.getInt(desc + DESC_LBA_HI)) << 32;
+			long sg = Integer.toUnsignedLong(ram.getInt(desc + DESC_SG_ADDRESS));
+			int sgCount = ram.getInt(desc + DESC_SG_COUNT);
+			long[] entries = command == DISK_CMD_READ || command == DISK_CMD_WRITE 
+				? validate(ram, lba, sg, sgCount) 
+				: null;
+			if (command == DISK_CMD_FLUSH) {
+				store.flush();
+				status = REQ_STATUS_OK;
+			} else if (entries == null) {
+				status = REQ_STATUS_BAD_REQUEST;
+			} else {
+				long position = lba * SECTOR_SIZE;
+				for (long entry : entries) {
+					long address = entry >>> 32;
+					int length = (int) entry;
+					if (command == DISK_CMD_READ) {
+						store.read(position, ram, address, length);
+					} else {
+						store.write(position, ram, address, length);
+					}
+					position += length;
+					transferred += length;
+				}
+				status = REQ_STATUS_OK;
+			}
+		} catch (IOException | RuntimeException e) {
+			status = REQ_STATUS_ERROR;
+		}
+		ram.setInt(desc + DESC_TRANSFERRED, (int) transferred);
+		ram.setInt(desc + DESC_STATUS, status);
+	}
+	
+	/**
+	 * The whole request must be in bounds before anything moves. The sg list is read ONCE, 
+	 * the guest may rewrite it meanwhile (async mode), only the validated copy is used.
+	 * @return the sg entries (address << 32 | length), null if the request is invalid
+	 */
+	private long[] validate(ByteMemorySpace ram, long lba, long sg, int sgCount) {
+		if (lba < 0 || sgCount <= 0 || sgCount > MAX_SG_COUNT || sg + (long) sgCount * SG_ENTRY_SIZE > ram.length()) {
+			return null;
+		}
+		long[] entries = new long[sgCount];
+		long sectors = 0;
+		for (int i = 0; i < sgCount; i++) {
+			long entry = sg + (long) i * SG_ENTRY_SIZE;
+			long address = Integer.toUnsignedLong(ram.getInt(entry));
+			int length = ram.getInt(entry + 4);
+			if (length <= 0 || length % SECTOR_SIZE != 0 || address + length > ram.length()) {
+				return null;
+			}
+			entries[i] = address << 32 | length;
+			sectors += length / SECTOR_SIZE;
+		}
+		return lba + sectors <= totalSectors ? entries : null;
+	}
+	
+	private synchronized ExecutorService ioWorker() {
+		if (ioWorker == null) {
+			ioWorker = Executors.newSingleThreadExecutor(r -> {
+				Thread t = new Thread(r, "FL32R-QDisk-IO");
+				t.setDaemon(true); // never keeps the VM alive
+				return t;
+			});
+		}
+		return ioWorker;
+	}
+	
+	/**
+	 * Lets posted requests finish, then flushes and closes the image
+	 */
+	@Override
+	public void shutdown() {
+		ExecutorService worker;
+		synchronized (this) {
+			worker = this.ioWorker;
+		}
+		DiskDriveMMIO.closeImage(this, worker, store);
+	}
+	
+	private static final class Queue {
+		int base, size, head, tail; // guarded by the queue itself
+	}
+}
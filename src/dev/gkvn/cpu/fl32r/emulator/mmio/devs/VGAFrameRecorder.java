@@ -0,0 +1,334 @@
+package dev.gkvn.cpu.fl32r.emulator.mmio.devs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Streams the VGA output to a file, only the frames that changed since the previous
+ * recorded one are written, stamped with the emulated time of their vblank.
+ *
+ * Frames are grabbed and encoded by the recorder's own thread, woken up at every vblank.
+ * Only the last recorded frame and the one being encoded are held in memory, if the
+ * disk (or the host) can not keep up, frames are skipped rather than queued
+ * (the frame number and cycle stamp tell how many).
+ *
+ * File layout (big-endian):
+ * <pre>
+ * header: magic "FL32RVID", u16 version, u16 width, u16 height, u32 CPU frequency (hz, at start)
+ * frame : u8 type (0 = key, 1 = delta), u64 frame number (vblank count), u64 retired cycles,
+ *         u32 payload length, payload
+ * </pre>
+ * The frame number and cycles are those of the same vblank, the pixels are sampled when the recorder
+ * gets to it, so at or after that stamp (the guest may have drawn a bit of the next frame already).
+ * 
+ * The payload is a sequence of ops over the pixels (0x00RRGGBB, row major) until the frame is covered,
+ * each op is a u8 opcode followed by a LEB128 pixel count:
+ * <pre>
+ * SKIP n      : n pixels unchanged from the reference frame
+ * FILL n rgb  : n pixels of one color (3 bytes)
+ * COPY n rgb* : n literal pixels (3 bytes each)
+ * </pre>
+ * The reference is the previous frame for deltas and a black frame for key frames.
+ */
+public final class VGAFrameRecorder implements Closeable {
+	public static final byte[] MAGIC = "FL32RVID".getBytes(StandardCharsets.US_ASCII);
+	public static final int VERSION = 1;
+	public static final int KEYFRAME_INTERVAL = 600; // frames written, ~10s of guest time at most
+	public static final int
+		FRAME_KEY = 0,
+		FRAME_DELTA = 1
+	;
+	public static final int
+		OP_SKIP = 0,
+		OP_FILL = 1,
+		OP_COPY = 2
+	;
+	private static final int MIN_FILL_RUN = 4; // shorter runs are cheaper as literals
+	private static final int PIXELS = VGAGraphicsMMIO.WIDTH * VGAGraphicsMMIO.HEIGHT;
+	private static final int[] BLACK = new int[PIXELS];
+
+	private final VGAGraphicsMMIO vga;
+	private final DataOutputStream out;
+	private final Thread thread;
+	private volatile boolean running = true;
+	private volatile IOException failure;
+
+	// the last vblank, published by the CPU thread as a whole
+	private volatile Vblank lastVblank = new Vblank(-1, 0);
+
+	// recorder thread only
+	private int[] previous = new int[PIXELS];
+	private int[] current = new int[PIXELS];
+	private long imageVersion = -1;
+	private long recordedFrame = -1;
+	private volatile long framesWritten = 0;
+	private final ByteArrayOutputStream payload = new ByteArrayOutputStream(64 * 1024);
+
+	VGAFrameRecorder(VGAGraphicsMMIO vga, Path file, int frequencyHz) throws IOException {
+		this.vga = vga;
+		this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file,
+			StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE
+		), 1024 * 1024));
+		try {
+			out.write(MAGIC);
+			out.writeShort(VERSION);
+			out.writeShort(VGAGraphicsMMIO.WIDTH);
+			out.writeShort(VGAGraphicsMMIO.HEIGHT);
+			out.writeInt(frequencyHz);
+		} catch (IOException e) {
+			out.close();
+			throw e;
+		}
+		this.thread = new Thread(this::recordLoop, "FL32R-VGA-Recorder");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * CPU thread, at the start of every vblank
+	 */
+	void vblank(long frame, long cycles) {
+		this.lastVblank = new Vblank(frame, cycles);
+		LockSupport.unpark(thread);
+	}
+
+	private void recordLoop() {
+		try {
+			while (running) {
+				LockSupport.park(this);
+				Vblank vblank = lastVblank;
+				long frame = vblank.frame();
+				if (frame == recordedFrame) {
+					continue; // spurious wakeup
+				}
+				recordedFrame = frame;
+				long version = vga.captureInto(current, imageVersion);
+				if (version == imageVersion) {
+					continue; // nothing changed on screen
+				}
+				imageVersion = version;
+				writeFrame(frame, vblank.cycles());
+			}
+		} catch (IOException e) {
+			this.failure = e;
+		} finally {
+			try {
+				out.close();
+			} catch (IOException e) {
+				if (failure == null) failure = e;
+			}
+		}
+	}
+
+	private void writeFrame(long frame, long cycles) throws IOException {
+		boolean key = framesWritten % KEYFRAME_INTERVAL == 0;
+		payload.reset();
+		encode(key ? BLACK : previous, current, payload);
+		out.writeByte(key ? FRAME_KEY : FRAME_DELTA);
+		out.writeLong(frame);
+		out.writeLong(cycles);
+		out.writeInt(payload.size());
+		payload.writeTo(out);
+		framesWritten++;
+		// the frame just written is the next reference
+		int[] swap = previous;
+		previous = current;
+		current = swap;
+	}
+
+	static void encode(int[] reference, int[] frame, ByteArrayOutputStream dst) {
+		int i = 0;
+		while (i < PIXELS) {
+			int start = i;
+			if (frame[i] == reference[i]) {
+				while (i < PIXELS && frame[i] == reference[i]) i++;
+				op(dst, OP_SKIP, i - start);
+				continue;
+			}
+			int run = fillRun(reference, frame, i);
+			if (run >= MIN_FILL_RUN) {
+				op(dst, OP_FILL, run);
+				rgb(dst, frame[i]);
+				i += run;
+				continue;
+			}
+			// literals, up to the next unchanged pixel or the next run worth a FILL
+			while (i < PIXELS && frame[i] != reference[i] && fillRun(reference, frame, i) < MIN_FILL_RUN) i++;
+			if (i == start) {
+				i++; // never empty
+			}
+			op(dst, OP_COPY, i - start);
+			for (int p = start; p < i; p++) {
+				rgb(dst, frame[p]);
+			}
+		}
+	}
+
+	// changed pixels of the same color starting at i
+	private static int fillRun(int[] reference, int[] frame, int i) {
+		int color = frame[i];
+		int n = 0;
+		while (i + n < PIXELS && frame[i + n] == color && frame[i + n] != reference[i + n]) {
+			n++;
+		}
+		return n;
+	}
+
+	private static void op(ByteArrayOutputStream dst, int opcode, int count) {
+		dst.write(opcode);
+		while ((count & ~0x7F) != 0) {
+			dst.write((count & 0x7F) | 0x80);
+			count >>>= 7;
+		}
+		dst.write(count);
+	}
+
+	private static void rgb(ByteArrayOutputStream dst, int color) {
+		dst.write(color >>> 16);
+		dst.write(color >>> 8);
+		dst.write(color);
+	}
+
+	public long getFramesWritten() {
+		return framesWritten;
+	}
+
+	/**
+	 * Stops recording, the frame being encoded (if any) is finished first
+	 * @throws IOException if writing the recording failed at some point
+	 */
+	@Override
+	public void close() throws IOException {
+		running = false;
+		LockSupport.unpark(thread);
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	private record Vblank(long frame, long cycles) {}
+
+	/**
+	 * Reads a recording back, frame by frame
+	 */
+	public static final class Reader implements Closeable {
+		private final DataInputStream in;
+		private final int frequencyHz;
+		private final int[] pixels = new int[PIXELS];
+
+		public record Frame(long frameNumber, long cycles, boolean keyFrame, int[] pixels) {}
+
+		public Reader(Path file) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1024 * 1024));
+			try {
+				byte[] magic = new byte[MAGIC.length];
+				in.readFully(magic);
+				if (!Arrays.equals(magic, MAGIC)) {
+					throw new IOException("Not a FL32R VGA recording (bad magic)");
+				}
+				int version = in.readUnsignedShort();
+				int width = in.readUnsignedShort();
+				int height = in.readUnsignedShort();
+				if (version != VERSION || width != VGAGraphicsMMIO.WIDTH || height != VGAGraphicsMMIO.HEIGHT) {
+					throw new IOException("Unsupported recording (version " + version + ", " + width + "x" + height + ")");
+				}
+				this.frequencyHz = in.readInt();
+			} catch (IOException e) {
+				in.close();
+				throw e;
+			}
+		}
+
+		public int getFrequencyHz() {
+			return frequencyHz;
+		}
+
+		/**
+		 * @return the next frame (its pixels are a copy), null at the end of the recording
+		 */
+		public Frame next() throws IOException {
+			int type = in.read();
+			if (type < 0) {
+				return null;
+			}
+			long frame = in.readLong();
+			long cycles = in.readLong();
+			int length = in.readInt();
+			byte[] data = in.readNBytes(length);
+			if (data.length != length) {
+				throw new EOFException("Truncated frame " + frame);
+			}
+			if (type == FRAME_KEY) {
+				Arrays.fill(pixels, 0);
+			} else if (type != FRAME_DELTA) {
+				throw new IOException("Bad frame type " + type);
+			}
+			try {
+				decode(data, pixels);
+			} catch (ArrayIndexOutOfBoundsException e) {
+				throw new IOException("Corrupted frame " + frame);
+			}
+			return new Frame(frame, cycles, type == FRAME_KEY, pixels.clone());
+		}
+
+		private static void decode(byte[] data, int[] pixels) throws IOException {
+			int pos = 0, i = 0;
+			while (i < PIXELS) {
+				if (pos >= data.length) {
+					throw new IOException("Frame ends after " + i + " pixels");
+				}
+				int opcode = data[pos++];
+				int count = 0;
+				for (int shift = 0; ; shift += 7) {
+					int b = data[pos++] & 0xFF;
+					count |= (b & 0x7F) << shift;
+					if ((b & 0x80) == 0) break;
+				}
+				if (count <= 0 || i + count > PIXELS) {
+					throw new IOException("Bad op count " + count + " at pixel " + i);
+				}
+				switch (opcode) {
+					case OP_SKIP -> {}
+					case OP_FILL -> {
+						int color = readRGB(data, pos);
+						pos += 3;
+						Arrays.fill(pixels, i, i + count, color);
+					}
+					case OP_COPY -> {
+						for (int p = i; p < i + count; p++, pos += 3) {
+							pixels[p] = readRGB(data, pos);
+						}
+					}
+					default -> throw new IOException("Bad opcode " + opcode);
+				}
+				i += count;
+			}
+		}
+
+		private static int readRGB(byte[] data, int pos) {
+			return ((data[pos] & 0xFF) << 16) | ((data[pos + 1] & 0xFF) << 8) | (data[pos + 2] & 0xFF);
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
@@ -6,22 +6,27 @@ import java.awt.Font;
 import java.awt.FontMetrics;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.event.FocusAdapter;
 import java.awt.event.FocusEvent;
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.locks.LockSupport;
 
 import javax.swing.JFrame;
 import javax.swing.JPanel;
 import javax.swing.SwingUtilities;
 
 import dev.gkvn.cpu.fl32r.emulator.FL32RConstants;
+import dev.gkvn.cpu.fl32r.emulator.FL32REventScheduler.Event;
 import dev.gkvn.cpu.fl32r.emulator.Utils;
 import dev.gkvn.cpu.fl32r.emulator.mmio.AbstractMMIODevice;
 import dev.gkvn.cpu.fl32r.emulator.mmio.FL32RMMIO;
@@ -31,7 +36,7 @@ import dev.gkvn.cpu.utils.SingletonEventSource;
 public final class VGAGraphicsMMIO extends AbstractMMIODevice {	
 	public static final int WIDTH = 640, HEIGHT = 480;
 	public static byte FONT_GLYPHS[] = null;
-	public static BufferedImage NO_SIGNAL_SCREEN = noSignalImage();
+	private static BufferedImage NO_SIGNAL_SCREEN; // lazily, headless hosts may not have any font
 	
 	// burh
 	static {
@@ -45,11 +50,21 @@ public final class VGAGraphicsMMIO extends AbstractMMIODevice {
 	
 	// VGA info
 	public static final int VBLANK_IRQ     = 0x03;
+	public static final int BLIT_IRQ       = 0x04;
 	// 80 (horizontal) x 30 (vertical) for a total of 240 chars, 4 bytes each
 	public static final int TEXT_MODE_SIZE = 80 * 30 * 4;
 	public static final int RGB32_MODE_SIZE  = WIDTH * HEIGHT * 4;
 	// TEXT shit
 	public static final int GLYPH_WIDTH = 8, GLYPH_HEIGHT = 16;
+	// glyph row byte -> 8 pixel masks (-1 = foreground, 0 = background), MSB is the leftmost pixel
+	private static final int[] GLYPH_ROW_MASKS = new int[256 * GLYPH_WIDTH];
+	static {
+		for (int row = 0; row < 256; row++) {
+			for (int gx = 0; gx < GLYPH_WIDTH; gx++) {
+				GLYPH_ROW_MASKS[row * GLYPH_WIDTH + gx] = ((row >>> (7 - gx)) & 1) != 0 ? -1 : 0;
+			}
+		}
+	}
 	public static final int MAX_HORIZONTAL = 80, MAX_VERTICAL = 30;
 	
 	public static final int 
@@ -58,7 +73,23 @@ public final class VGAGraphicsMMIO extends AbstractMMIODevice {
 	
 		CURSOR_CTRL_ON = 1 << 0,
 		CURSOR_CTRL_BLINK = 1 << 1,
-		CURSOR_CTRL_BLOCK = 1 << 2
+		CURSOR_CTRL_BLOCK = 1 << 2,
+		
+		// BLIT_CONTROL: [3..0] operation, writing it runs the operation
+		BLIT_OP_MASK = 0x0F,
+		BLIT_CTRL_IRQ = 1 << 8, // raise BLIT_IRQ once done
+		// BLIT_STATUS (W1C)
+		BLIT_STATUS_DONE = 1 << 0,
+		BLIT_STATUS_ERROR = 1 << 1
+	;
+	
+	// blitter operations, rectangles are BLIT_WIDTH elements (BLIT_BPP bytes each) x BLIT_HEIGHT rows,
+	// VRAM addresses are offsets from VRAM_BASE, rows are BLIT_*_PITCH bytes apart
+	public static final int 
+		BLIT_OP_FILL = 0x01, // dst rect = BLIT_COLOR
+		BLIT_OP_COPY = 0x02, // VRAM src rect -> dst rect (overlap safe)
+		BLIT_OP_DMA = 0x03, // guest RAM src rect -> VRAM dst rect
+		BLIT_OP_TEXT_SCROLL = 0x04 // text screen up by BLIT_SCROLL_ROWS (down if < 0), fills with BLIT_COLOR
 	;
 	
 	// register offsets
@@ -78,8 +109,21 @@ public final class VGAGraphicsMMIO extends AbstractMMIODevice {
 		PALETTE_INDEX = 0x28,
 		PALETTE_DATA = 0x2C,
 		
+		// 2D blitter
+		BLIT_CONTROL = 0x30,
+		BLIT_STATUS = 0x34,
+		BLIT_SRC = 0x38,
+		BLIT_DST = 0x3C,
+		BLIT_SRC_PITCH = 0x40,
+		BLIT_DST_PITCH = 0x44,
+		BLIT_WIDTH = 0x48,
+		BLIT_HEIGHT = 0x4C,
+		BLIT_BPP = 0x50, // 1 or 4
+		BLIT_COLOR = 0x54,
+		BLIT_SCROLL_ROWS = 0x58,
+		
 		// end
-		REG_END = 0x2C + 4
+		REG_END = 0x58 + 4
 	;
 	
 	public static final int 
@@ -98,6 +142,13 @@ public final class VGAGraphicsMMIO extends AbstractMMIODevice {
 	static  final int VRAM_SIZE = TEXT_MODE_SIZE + RGB32_MODE_SIZE * 2;
 	private final ByteMemorySpace vram = new ByteMemorySpace(VRAM_SIZE);
 	
+	// dirty tracking, set by VRAM writes (CPU thread), cleared by the render thread right before it reads.
+	// framebuffers in units of 640 bytes (an 8bpp scanline, a quarter of a 32bpp one), text per cell
+	private static final int DIRTY_UNIT = WIDTH;
+	private final byte[] dirtyUnits = new byte[TEXT_MODE_BASE / DIRTY_UNIT];
+	private final byte[] dirtyCells = new byte[MAX_HORIZONTAL * MAX_VERTICAL];
+	private volatile boolean fullRedraw = true; // mode, palette, page flip... everything changes
+	
 	// palette
 	private int paletteIndex = 0;
 	private final int[] palette = new int[256];
@@ -108,6 +159,11 @@ public final class VGAGraphicsMMIO extends AbstractMMIODevice {
 	private int videoMode;
 	private int framebufferIndex;
 	
+	// blitter
+	private int blitStatus, blitSrc, blitDst, blitSrcPitch, blitDstPitch;
+	private int blitWidth, blitHeight, blitBpp = 4, blitColor, blitScrollRows;
+	private byte[] blitBuffer = new byte[WIDTH * 4]; // one row, CPU thread
+	
 	// text mode cursors
 	private int cursorX = 0; // 0..79
 	private int cursorY = 0; // 0..29
@@ -117,21 +173,65 @@ public final class VGAGraphicsMMIO extends AbstractMMIODevice {
 
 	// emulated VGA display states (CRT-ish)
 	private final BufferedImage image = new BufferedImage(640, 480, BufferedImage.TYPE_INT_RGB);
+	private final int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData(); // 0x00RRGGBB
+	private final byte[] rowBuffer = new byte[WIDTH * 4]; // render thread only
+	private final Object renderLock = new Object(); // image, dirty claims; render thread vs captureFrame()
+	private final boolean headless;
+	private JFrame frame; // null when headless
 	private volatile boolean running = true;
-	private volatile boolean vblank = false;
-	private volatile boolean blinkOn = true;
+	private boolean blinkOn = true; // renderLock
+	private long imageVersion = 0; // renderLock, bumped whenever the image changes
+	private volatile VGAFrameRecorder recorder;
+	private volatile Thread renderThread; // null when headless
+	
+	// the beam runs on the emulated clock (CPU thread), so vblank keeps its rate
+	// whatever the host does: throttled, fast-forwarded, single stepped...
+	public static final int REFRESH_RATE = 60; // hz
+	public static final int BLINK_FRAMES = 30; // 2 blink toggles per second
+	private static final long IDLE_REFRESH_NS = 50_000_000L; // repaint now and then even when the guest is stopped
+	private long frameCycles; // cycles per frame, at the current CPU frequency
+	private long lastVblankCycles = Long.MIN_VALUE / 2;
+	private long nextVblankCycles;
+	private volatile long frameCount = 0;
+	private final Event vblankEvent = new Event("vblank", this::beginVblank);
 	
 	public static final int MEMORY_MAP_SIZE = 4 * 1024 * 1024;
+	
+	/**
+	 * Windowed VGA, opens a Swing window which also feeds the keyboard events
+	 */
 	public VGAGraphicsMMIO(FL32RMMIO mmio,
 			SingletonEventSource<Integer> keyDown,
 			SingletonEventSource<Integer> keyUp
 		) {
+		this(mmio, false);
+		JPanel panel = createWindow(keyDown, keyUp);
+		startRenderThread(panel);
+	}
+	
+	/**
+	 * Headless VGA, same registers, VRAM and vblank timing but nothing is drawn
+	 * until a frame is asked for with {@link #captureFrame()}
+	 */
+	public VGAGraphicsMMIO(FL32RMMIO mmio) {
+		this(mmio, true);
+	}
+	
+	private VGAGraphicsMMIO(FL32RMMIO mmio, boolean headless) {
 		super(mmio, FL32RMMIO.MMIO_REGION_SIZE - MEMORY_MAP_SIZE, MEMORY_MAP_SIZE);	
+		this.headless = headless;
 		// default palette
 		System.arraycopy(FL32RConstants.VGA_STD_PALETTE, 0, palette, 0, 256);
-		
+		// first frame
+		this.frameCycles = cyclesPerFrame();
+		this.nextVblankCycles = getEmulator().getRetiredCycles() + frameCycles;
+		getEmulator().getScheduler().schedule(vblankEvent, nextVblankCycles);
+	}
+	
+	private JPanel createWindow(SingletonEventSource<Integer> keyDown, SingletonEventSource<Integer> keyUp) {
 		// swing boilerplate
 		JFrame frame = new JFrame("FL32R VGA Display (640x480)");
+		this.frame = frame;
 		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 		JPanel panel = new JPanel() {
 			private static final long serialVersionUID = 1L;
@@ -143,7 +243,7 @@ public final class VGAGraphicsMMIO extends AbstractMMIODevice {
 				int h = getHeight();
 				if (!videoEnable) {
 					// fake no signal, for shit and giggles
-					g2.drawImage(NO_SIGNAL_SCREEN, 0, 0, w, h, null);
+					g2.drawImage(noSignalScreen(), 0, 0, w, h, null);
 					return;
 				}
 				g2.drawImage(image, 0, 0, w, h, null);
@@ -184,43 +284,167 @@ public final class VGAGraphicsMMIO extends AbstractMMIODevice {
 		frame.setResizable(true);
 		frame.setVisible(true);
 		panel.requestFocusInWindow();
-		Thread renderThread = new Thread(() -> {
-			final long frameTimeNs = 16_666_667L; // 60hz
-			final long vblankTimeNs = 1_000_000L; // 1ms
-			int blinkCounter = 0; // blonk
-		    
+		return panel;
+	}
+	
+	/**
+	 * Draws the frames for the window, woken up by every vblank. Frames are dropped if 
+	 * the guest runs faster than the host can draw them, nothing is owed to the guest here
+	 */
+	private void startRenderThread(JPanel panel) {
+		Thread thread = new Thread(() -> {
 			while (running) {
-				long frameStart = System.nanoTime();
-				this.vblank = false; // scanning
-	            switch (videoMode) {
-	                case MODE_TEXT -> renderTextMode();
-	                case MODE_RGB_32BPP -> render32bppRGB();
-	                case MODE_RGB_08BPP -> render8bppRGB();
-	            }
-	            SwingUtilities.invokeLater(panel::repaint);
-				// emulate the crt beam zapping through the screen
-				while (System.nanoTime() - frameStart < frameTimeNs - vblankTimeNs) {
-					Thread.onSpinWait();
-				}
-	            // crt beam turned off
-	            this.vblank = true;
-	            // blinking timer
-				if (++blinkCounter >= 30) { // 2 times per sec (60hz)
-					blinkOn = !blinkOn;
-					blinkCounter = 0;
+				LockSupport.parkNanos(this, IDLE_REFRESH_NS);
+				boolean full;
+				Rectangle dirty;
+				synchronized (renderLock) {
+					full = fullRedraw;
+					dirty = renderFrame();
 				}
-	            // vblank
-	            if (vblankIrqEnable) {
-	                this.interrupt(VBLANK_IRQ); // "pull the pin" typashit
-	            }
-				long vbStart = System.nanoTime();
-				while (System.nanoTime() - vbStart < vblankTimeNs) {
-					Thread.onSpinWait();
+				if (full) {
+					SwingUtilities.invokeLater(panel::repaint); // signal may have come or gone
+				} else if (dirty != null) {
+					SwingUtilities.invokeLater(() -> repaintScaled(panel, dirty));
 				}
 			}
 		}, "Emulated VGA Device");
-		renderThread.setDaemon(true);
-		renderThread.start();
+		thread.setDaemon(true);
+		this.renderThread = thread;
+		thread.start();
+	}
+	
+	private long cyclesPerFrame() {
+		return Math.max(1, getEmulator().getFrequencyHz() / REFRESH_RATE);
+	}
+	
+	// scheduler event, CPU thread
+	private void beginVblank(long retiredCycles) {
+		this.frameCycles = cyclesPerFrame(); // the frequency may have changed
+		this.lastVblankCycles = nextVblankCycles;
+		this.nextVblankCycles += frameCycles;
+		if (nextVblankCycles <= retiredCycles) {
+			// the clock jumped (frequency change, long halt...), no burst of missed frames
+			this.lastVblankCycles = retiredCycles;
+			this.nextVblankCycles = retiredCycles + frameCycles;
+		}
+		this.frameCount++;
+		getEmulator().getScheduler().schedule(vblankEvent, nextVblankCycles);
+		if (vblankIrqEnable) {
+			this.interrupt(VBLANK_IRQ); // "pull the pin" typashit
+		}
+		Thread thread = renderThread;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+		}
+		VGAFrameRecorder rec = recorder;
+		if (rec != null) {
+			rec.vblank(frameCount, lastVblankCycles);
+		}
+	}
+	
+	// the beam is off for ~1ms out of the 16.6ms frame
+	private boolean inVblank() {
+		return getEmulator().getRetiredCycles() - lastVblankCycles < frameCycles * 3 / 50;
+	}
+	
+	/**
+	 * Renders whatever changed since the last frame, caller holds the renderLock
+	 * @return the touched image region, null if nothing changed
+	 */
+	private Rectangle renderFrame() {
+		boolean blink = (frameCount / BLINK_FRAMES & 1) == 0;
+		if (blink != blinkOn) {
+			blinkOn = blink;
+			markBlinkingDirty();
+		}
+		boolean full = fullRedraw;
+		fullRedraw = false;
+		Rectangle dirty = switch (videoMode) {
+			case MODE_TEXT -> renderTextMode(full);
+			case MODE_RGB_32BPP -> render32bppRGB(full);
+			case MODE_RGB_08BPP -> render8bppRGB(full);
+			default -> null;
+		};
+		if (dirty != null) {
+			imageVersion++;
+		}
+		return dirty;
+	}
+	
+	/**
+	 * Copies the screen into dst if it changed since the given version (same rules as captureFrame)
+	 * @return the version of the image now in dst
+	 */
+	long captureInto(int[] dst, long version) {
+		synchronized (renderLock) {
+			if (headless) {
+				renderFrame();
+			}
+			if (imageVersion != version) {
+				System.arraycopy(pixels, 0, dst, 0, pixels.length);
+			}
+			return imageVersion;
+		}
+	}
+	
+	/**
+	 * Starts recording every changed frame into the given file (see {@link VGAFrameRecorder} for the format), 
+	 * replacing the current recording if any
+	 */
+	public synchronized VGAFrameRecorder startRecording(Path file) throws IOException {
+		stopRecording();
+		VGAFrameRecorder rec = new VGAFrameRecorder(this, file, getEmulator().getFrequencyHz());
+		this.recorder = rec;
+		return rec;
+	}
+	
+	/**
+	 * Stops and finishes the current recording, if any
+	 */
+	public synchronized void stopRecording() throws IOException {
+		VGAFrameRecorder rec = recorder;
+		if (rec != null) {
+			this.recorder = null;
+			rec.close();
+		}
+	}
+	
+	/**
+	 * Snapshot of the current screen contents (of VRAM, regardless of the video enable bit), 
+	 * rendered on the calling thread if the render thread doesn't (headless), 
+	 * only the regions written since the last capture are redrawn.
+	 */
+	public BufferedImage captureFrame() {
+		BufferedImage copy = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+		int[] dst = ((DataBufferInt) copy.getRaster().getDataBuffer()).getData();
+		synchronized (renderLock) {
+			if (headless) {
+				renderFrame();
+			}
+			System.arraycopy(pixels, 0, dst, 0, pixels.length);
+		}
+		return copy;
+	}
+	
+	public boolean isHeadless() {
+		return headless;
+	}
+	
+	@Override
+	public void shutdown() {
+		try {
+			stopRecording();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		running = false;
+		Thread thread = renderThread;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+		}
+		if (frame != null) {
+			SwingUtilities.invokeLater(frame::dispose);
+		}
 	}
 
 	@Override
@@ -233,7 +457,7 @@ public final class VGAGraphicsMMIO extends AbstractMMIODevice {
 					(vblankIrqEnable ? VIDEO_CTRL_IRQ_VBLANK : 0)
 				;
 				case VIDEO_MODE -> videoMode;
-				case VIDEO_STATUS -> (vblank ? 1 : 0);
+				case VIDEO_STATUS -> (inVblank() ? 1 : 0);
 				case FRAMEBUFF_WIDTH -> WIDTH;
 				case FRAMEBUFF_HEIGHT -> HEIGHT;
 				case FRAMEBUFFER_INDEX -> framebufferIndex;
@@ -247,15 +471,24 @@ public final class VGAGraphicsMMIO extends AbstractMMIODevice {
 				;
 				case PALETTE_INDEX -> paletteIndex;
 				case PALETTE_DATA -> palette[paletteIndex];
+				case BLIT_STATUS -> blitStatus;
+				case BLIT_SRC -> blitSrc;
+				case BLIT_DST -> blitDst;
+				case BLIT_SRC_PITCH -> blitSrcPitch;
+				case BLIT_DST_PITCH -> blitDstPitch;
+				case BLIT_WIDTH -> blitWidth;
+				case BLIT_HEIGHT -> blitHeight;
+				case BLIT_BPP -> blitBpp;
+				case BLIT_COLOR -> blitColor;
+				case BLIT_SCROLL_ROWS -> blitScrollRows;
 				default -> 0;
 			};
 		}
+		if (off < VRAM_BASE) {
+			return 0; // unmapped
+		}
 		
-		int vro = off - VRAM_BASE;
-		return Utils.beBytesToInt(
-			vram.get(vro), vram.get(vro + 1),
-			vram.get(vro + 2), vram.get(vro + 3)
-		);
+		return vram.getInt(off - VRAM_BASE);
 	}
 
 	@Override
@@ -264,33 +497,211 @@ public final class VGAGraphicsMMIO extends AbstractMMIODevice {
 		if (off < REG_END) { // registers
 			switch (off) {
 				case VIDEO_CONTROL -> {
-					videoEnable = (value & VIDEO_CTRL_ENABLE) != 0;
+					boolean enable = (value & VIDEO_CTRL_ENABLE) != 0;
+					if (enable != videoEnable) fullRedraw = true;
+					videoEnable = enable;
 					vblankIrqEnable = (value & VIDEO_CTRL_IRQ_VBLANK) != 0;
+					vblankEvent.setWakeup(vblankIrqEnable); // only worth waking a halted CPU for the IRQ
 				}
-				case VIDEO_MODE -> videoMode = value;
-				case FRAMEBUFFER_INDEX -> framebufferIndex = value & 1;
-				// cursor position
-				case CURSOR_X -> cursorX = Math.max(0, Math.min(79, value));
-				case CURSOR_Y -> cursorY = Math.max(0, Math.min(29, value));
-				case CURSOR_POS -> {
-					this.cursorX = value % MAX_HORIZONTAL;
-					this.cursorY = Math.max(0, Math.min(29, value / MAX_HORIZONTAL));
+				case VIDEO_MODE -> {
+					if (value != videoMode) fullRedraw = true;
+					videoMode = value;
 				}
+				case FRAMEBUFFER_INDEX -> {
+					if ((value & 1) != framebufferIndex) fullRedraw = true;
+					framebufferIndex = value & 1;
+				}
+				// cursor position
+				case CURSOR_X -> moveCursor(Math.max(0, Math.min(79, value)), cursorY);
+				case CURSOR_Y -> moveCursor(cursorX, Math.max(0, Math.min(29, value)));
+				// floor, so a negative position still lands on the screen (like the clamped X/Y above)
+				case CURSOR_POS -> moveCursor(
+					Math.floorMod(value, MAX_HORIZONTAL), 
+					Math.max(0, Math.min(29, Math.floorDiv(value, MAX_HORIZONTAL)))
+				);
 				// cursor control
 				case CURSOR_CONTROL -> {
 					cursorOn = (value & CURSOR_CTRL_ON) != 0;
 					cursorBlink = (value & CURSOR_CTRL_BLINK) != 0;
 					blockCursorMode = (value & CURSOR_CTRL_BLOCK) != 0;
+					markCursorDirty();
 				}
 				// palette (8bpp mode)
 				case PALETTE_INDEX -> paletteIndex = value & 0xFF;
 				case PALETTE_DATA -> {
 					palette[paletteIndex] = value & 0x00FFFFFF;
+					fullRedraw = true;
 				}
+				// blitter
+				case BLIT_CONTROL -> blit(value);
+				case BLIT_STATUS -> blitStatus &= ~value;
+				case BLIT_SRC -> blitSrc = value;
+				case BLIT_DST -> blitDst = value;
+				case BLIT_SRC_PITCH -> blitSrcPitch = value;
+				case BLIT_DST_PITCH -> blitDstPitch = value;
+				case BLIT_WIDTH -> blitWidth = value;
+				case BLIT_HEIGHT -> blitHeight = value;
+				case BLIT_BPP -> blitBpp = value;
+				case BLIT_COLOR -> blitColor = value;
+				case BLIT_SCROLL_ROWS -> blitScrollRows = value;
 			}
 			return;
 		}
-		vram.set32(off - VRAM_BASE, value);
+		if (off < VRAM_BASE) {
+			return; // unmapped
+		}
+		int v = off - VRAM_BASE;
+		vram.setInt(v, value);
+		markDirty(v);
+		markDirty(v + 3);
+	}
+	
+	private void markDirty(int v) {
+		if (v < TEXT_MODE_BASE) {
+			dirtyUnits[v / DIRTY_UNIT] = 1;
+		} else if (v < VRAM_SIZE) {
+			dirtyCells[(v - TEXT_MODE_BASE) >>> 2] = 1;
+		}
+	}
+	
+	private void markDirtyRange(long v, long len) {
+		if (len <= 0) {
+			return;
+		}
+		long end = v + len; // exclusive
+		if (v < TEXT_MODE_BASE) {
+			int last = (int) ((Math.min(end, TEXT_MODE_BASE) - 1) / DIRTY_UNIT);
+			Arrays.fill(dirtyUnits, (int) (v / DIRTY_UNIT), last + 1, (byte) 1);
+		}
+		if (end > TEXT_MODE_BASE) {
+			long from = Math.max(v, TEXT_MODE_BASE) - TEXT_MODE_BASE;
+			Arrays.fill(dirtyCells, (int) (from >>> 2), (int) ((end - TEXT_MODE_BASE - 1) >>> 2) + 1, (byte) 1);
+		}
+	}
+	
+	/**
+	 * Runs a blitter operation right away (at host memcpy speed), the CPU sees it complete
+	 * by the time its store retires. Bad parameters touch nothing and set BLIT_STATUS_ERROR.
+	 */
+	private void blit(int control) {
+		boolean ok = switch (control & BLIT_OP_MASK) {
+			case BLIT_OP_FILL -> blitFill();
+			case BLIT_OP_COPY -> blitCopy(vram);
+			case BLIT_OP_DMA -> blitCopy(getEmulator().getWorkingMemory());
+			case BLIT_OP_TEXT_SCROLL -> blitTextScroll(blitScrollRows);
+			default -> false;
+		};
+		blitStatus = BLIT_STATUS_DONE | (ok ? 0 : BLIT_STATUS_ERROR);
+		if ((control & BLIT_CTRL_IRQ) != 0) {
+			this.interrupt(BLIT_IRQ);
+		}
+	}
+	
+	/**
+	 * @return true if the rectangle [base, rows x pitch, rowBytes wide] fits in [0, limit)
+	 */
+	private static boolean rectFits(long base, long pitch, long rowBytes, long rows, long limit) {
+		if (base < 0 || pitch < 0 || rowBytes <= 0 || rows <= 0) {
+			return false;
+		}
+		return base + (rows - 1) * pitch + rowBytes <= limit;
+	}
+	
+	private long blitRowBytes() {
+		return (blitBpp == 1 || blitBpp == 4) ? Integer.toUnsignedLong(blitWidth) * blitBpp : -1;
+	}
+	
+	private boolean blitFill() {
+		long rowBytes = blitRowBytes();
+		long dst = Integer.toUnsignedLong(blitDst);
+		if (!rectFits(dst, blitDstPitch, rowBytes, blitHeight, VRAM_SIZE)) {
+			return false;
+		}
+		byte[] row = blitRow((int) rowBytes);
+		if (blitBpp == 1) {
+			Arrays.fill(row, 0, (int) rowBytes, (byte) blitColor);
+		} else {
+			for (int i = 0; i < rowBytes; i += 4) {
+				row[i]     = (byte) (blitColor >>> 24);
+				row[i + 1] = (byte) (blitColor >>> 16);
+				row[i + 2] = (byte) (blitColor >>> 8);
+				row[i + 3] = (byte) blitColor;
+			}
+		}
+		for (int y = 0; y < blitHeight; y++) {
+			vram.copyFrom(row, 0, dst + (long) y * blitDstPitch, (int) rowBytes);
+		}
+		markDirtyRange(dst, (long) (blitHeight - 1) * blitDstPitch + rowBytes);
+		return true;
+	}
+	
+	// from VRAM itself (COPY) or from guest RAM (DMA), rows are bounced through a buffer so overlapping
+	// rectangles work, walked bottom up when the destination is below the source
+	private boolean blitCopy(ByteMemorySpace source) {
+		long rowBytes = blitRowBytes();
+		long src = Integer.toUnsignedLong(blitSrc);
+		long dst = Integer.toUnsignedLong(blitDst);
+		if (!rectFits(src, blitSrcPitch, rowBytes, blitHeight, source.length())
+				|| !rectFits(dst, blitDstPitch, rowBytes, blitHeight, VRAM_SIZE)) {
+			return false;
+		}
+		byte[] row = blitRow((int) rowBytes);
+		boolean bottomUp = source == vram && dst > src;
+		for (int i = 0; i < blitHeight; i++) {
+			int y = bottomUp ? blitHeight - 1 - i : i;
+			source.copyTo(src + (long) y * blitSrcPitch, row, 0, (int) rowBytes);
+			vram.copyFrom(row, 0, dst + (long) y * blitDstPitch, (int) rowBytes);
+		}
+		markDirtyRange(dst, (long) (blitHeight - 1) * blitDstPitch + rowBytes);
+		return true;
+	}
+	
+	private boolean blitTextScroll(int rows) {
+		final int pitch = MAX_HORIZONTAL * 4;
+		int n = Math.min(Math.abs(rows), MAX_VERTICAL);
+		int kept = MAX_VERTICAL - n;
+		if (n == 0) {
+			return true;
+		}
+		if (kept > 0) {
+			byte[] moved = blitRow(kept * pitch); // the whole block at once
+			int from = rows > 0 ? n : 0;
+			int to = rows > 0 ? 0 : n;
+			vram.copyTo(TEXT_MODE_BASE + from * pitch, moved, 0, kept * pitch);
+			vram.copyFrom(moved, 0, TEXT_MODE_BASE + to * pitch, kept * pitch);
+		}
+		// blank the rows scrolled in
+		int firstBlank = rows > 0 ? kept : 0;
+		byte[] blank = blitRow(pitch);
+		for (int i = 0; i < pitch; i += 4) {
+			blank[i]     = (byte) (blitColor >>> 24);
+			blank[i + 1] = (byte) (blitColor >>> 16);
+			blank[i + 2] = (byte) (blitColor >>> 8);
+			blank[i + 3] = (byte) blitColor;
+		}
+		for (int y = firstBlank; y < firstBlank + n; y++) {
+			vram.copyFrom(blank, 0, TEXT_MODE_BASE + y * pitch, pitch);
+		}
+		markDirtyRange(TEXT_MODE_BASE, TEXT_MODE_SIZE);
+		return true;
+	}
+	
+	private byte[] blitRow(int len) {
+		if (blitBuffer.length < len) {
+			blitBuffer = new byte[len];
+		}
+		return blitBuffer;
+	}
+	
+	private void moveCursor(int x, int y) {
+		markCursorDirty(); // where it was
+		this.cursorX = x;
+		this.cursorY = y;
+		markCursorDirty();
+	}
+	
+	private void markCursorDirty() {
+		dirtyCells[cursorY * MAX_HORIZONTAL + cursorX] = 1;
 	}
 	
 	private int getVRAMAddressBase() {
@@ -300,79 +711,167 @@ public final class VGAGraphicsMMIO extends AbstractMMIODevice {
 		;
 	}
 
-	private void render32bppRGB() {
-		int p = getVRAMAddressBase();
-		for (int y = 0; y < 480; y++) {
-			for (int x = 0; x < 640; x++) {
-				int r = vram.get(p + 1) & 0xFF;
-				int g = vram.get(p + 2) & 0xFF;
-				int b = vram.get(p + 3) & 0xFF;
-				image.setRGB(x, y, (r << 16) | (g << 8) | b);
-				p += 4;
+	/**
+	 * Repaints only the part of the panel covering the given image region,
+	 * the image is stretched to the panel so the rectangle is scaled (rounded outwards)
+	 */
+	private static void repaintScaled(JPanel panel, Rectangle r) {
+		int w = panel.getWidth();
+		int h = panel.getHeight();
+		int x0 = r.x * w / WIDTH;
+		int y0 = r.y * h / HEIGHT;
+		int x1 = ((r.x + r.width) * w + WIDTH - 1) / WIDTH;
+		int y1 = ((r.y + r.height) * h + HEIGHT - 1) / HEIGHT;
+		panel.repaint(x0, y0, x1 - x0, y1 - y0);
+	}
+	
+	/**
+	 * Only the cells with the blink attribute (and the cursor) look different after a blink toggle
+	 */
+	private void markBlinkingDirty() {
+		if (videoMode != MODE_TEXT) {
+			return;
+		}
+		for (int i = 0; i < dirtyCells.length; i++) {
+			if ((vram.get(TEXT_MODE_BASE + (i << 2)) & 0x02) != 0) { // bit 25, big-endian
+				dirtyCells[i] = 1;
 			}
 		}
+		if (cursorOn && cursorBlink) {
+			markCursorDirty();
+		}
 	}
 	
-	private void render8bppRGB() {
-		int p = getVRAMAddressBase();
+	/**
+	 * Claims the dirty units [unit, unit + count), the flags are cleared before 
+	 * VRAM is read, so a write racing with the render is picked up next frame
+	 */
+	private boolean claimUnits(int unit, int count, boolean full) {
+		boolean dirty = full;
+		for (int i = unit; i < unit + count; i++) {
+			if (dirtyUnits[i] != 0) {
+				dirtyUnits[i] = 0;
+				dirty = true;
+			}
+		}
+		return dirty;
+	}
+
+	private Rectangle render32bppRGB(boolean full) {
+		final int unitsPerLine = (WIDTH * 4) / DIRTY_UNIT;
+		final byte[] row = rowBuffer;
+		int base = getVRAMAddressBase();
+		int minY = HEIGHT, maxY = -1;
 		for (int y = 0; y < HEIGHT; y++) {
-			for (int x = 0; x < WIDTH; x++) {
-				int idx = vram.get(p++) & 0xFF;
-				image.setRGB(x, y, palette[idx]);
+			int p = base + y * WIDTH * 4;
+			if (!claimUnits(p / DIRTY_UNIT, unitsPerLine, full)) {
+				continue;
+			}
+			vram.copyTo(p, row, 0, WIDTH * 4);
+			// [xx][R][G][B] per pixel, the first byte is ignored
+			for (int x = 0, i = 0, o = y * WIDTH; x < WIDTH; x++, i += 4) {
+				pixels[o + x] = ((row[i + 1] & 0xFF) << 16) | ((row[i + 2] & 0xFF) << 8) | (row[i + 3] & 0xFF);
 			}
+			minY = Math.min(minY, y);
+			maxY = y;
 		}
+		return maxY < 0 ? null : new Rectangle(0, minY, WIDTH, maxY - minY + 1);
 	}
 	
-	private void renderTextMode() {
-		int p = TEXT_MODE_BASE;
+	private Rectangle render8bppRGB(boolean full) {
+		final byte[] row = rowBuffer;
+		final int[] pal = palette;
+		int base = getVRAMAddressBase();
+		int minY = HEIGHT, maxY = -1;
+		for (int y = 0; y < HEIGHT; y++) {
+			int p = base + y * WIDTH;
+			if (!claimUnits(p / DIRTY_UNIT, 1, full)) {
+				continue;
+			}
+			vram.copyTo(p, row, 0, WIDTH);
+			for (int x = 0, o = y * WIDTH; x < WIDTH; x++) {
+				pixels[o + x] = pal[row[x] & 0xFF];
+			}
+			minY = Math.min(minY, y);
+			maxY = y;
+		}
+		return maxY < 0 ? null : new Rectangle(0, minY, WIDTH, maxY - minY + 1);
+	}
+	
+	private Rectangle renderTextMode(boolean full) {
+		final int rowBytes = MAX_HORIZONTAL * 4;
+		final byte[] row = rowBuffer;
+		int minX = MAX_HORIZONTAL, minY = MAX_VERTICAL, maxX = -1, maxY = -1;
 		
 		for (int y = 0; y < MAX_VERTICAL; y++) {
+			boolean fetched = false;
 			for (int x = 0; x < MAX_HORIZONTAL; x++) {
-				// fetch char
-				int screenChar = Utils.beBytesToInt(
-					vram.get(p), 
-					vram.get(p + 1), 
-					vram.get(p + 2), 
-					vram.get(p + 3)
-				);
-				p += 4; // word-by-word
-				// custom font format (NVGA - Nibba VGA)
-				// [31..26 reserved][25 blink][24 underline][23..16 background][15...8 foreground][7..0 codepoint]
-				int codePoint  = screenChar & 0xFF; // 8 bit
-				int foreground = (screenChar >>> 8) & 0xFF; // 8 bit 
-				int background = (screenChar >>> 16) & 0xFF; // 8 bit 
-				boolean underline = ((screenChar >>> 24) & 1) == 1; // 1 bit
-				boolean blink = ((screenChar >>> 25) & 1) == 1; // 1 bit
-				// glyph metadata
-				int glyphIdx = codePoint * GLYPH_HEIGHT;
-				boolean drawGlyph = !(blink && !blinkOn);
-				// draw the cursor
-				boolean isCursorCell = (x == cursorX && y == cursorY);
-				boolean cursorVisible = cursorOn && (!cursorBlink || blinkOn);
-				// draw the glyph
-				for (int gy = 0; gy < GLYPH_HEIGHT; gy++) {
-					byte horz = FONT_GLYPHS[glyphIdx + gy]; // horizontal line
-					boolean underlineRow = underline && gy == GLYPH_HEIGHT - 1;
-					boolean cursorRow = cursorVisible && isCursorCell 
-						&& (blockCursorMode || (gy >= GLYPH_HEIGHT - 2));
-					// scan horizontally
-					for (int gx = 0; gx < GLYPH_WIDTH; gx++) {
-						// each = 1 in the F16 is a ON (fore)
-						boolean on = ((horz >>> (7 - gx)) & 1) != 0;
-						int color;
-						if (cursorRow) {
-							// invert RGB evil type shit (yes this is accurate)
-							color = (on ? palette[foreground] : palette[background]) ^ 0xFFFFFF; 
-						} else if (underlineRow || (on && drawGlyph)) {
-							color = palette[foreground];
-						} else {
-							color = palette[background];
-						}
-						image.setRGB(x * GLYPH_WIDTH + gx, y * GLYPH_HEIGHT + gy, color);
-					}
+				int cell = y * MAX_HORIZONTAL + x;
+				if (dirtyCells[cell] == 0 && !full) {
+					continue;
 				}
+				dirtyCells[cell] = 0;
+				if (!fetched) { // the whole text row in one go, after the first claim
+					vram.copyTo(TEXT_MODE_BASE + y * rowBytes, row, 0, rowBytes);
+					fetched = true;
+				}
+				int i = x << 2;
+				renderCell(x, y, Utils.beBytesToInt(row[i], row[i + 1], row[i + 2], row[i + 3]));
+				minX = Math.min(minX, x);
+				maxX = Math.max(maxX, x);
+				minY = Math.min(minY, y);
+				maxY = y;
 			}
-		}		
+		}
+		if (maxY < 0) {
+			return null;
+		}
+		return new Rectangle(
+			minX * GLYPH_WIDTH, minY * GLYPH_HEIGHT, 
+			(maxX - minX + 1) * GLYPH_WIDTH, (maxY - minY + 1) * GLYPH_HEIGHT
+		);
+	}
+	
+	private void renderCell(int x, int y, int screenChar) {
+		// custom font format (NVGA - Nibba VGA)
+		// [31..26 reserved][25 blink][24 underline][23..16 background][15...8 foreground][7..0 codepoint]
+		int codePoint  = screenChar & 0xFF; // 8 bit
+		int foreground = palette[(screenChar >>> 8) & 0xFF]; // 8 bit 
+		int background = palette[(screenChar >>> 16) & 0xFF]; // 8 bit 
+		boolean underline = ((screenChar >>> 24) & 1) == 1; // 1 bit
+		boolean blink = ((screenChar >>> 25) & 1) == 1; // 1 bit
+		// glyph metadata
+		int glyphIdx = codePoint * GLYPH_HEIGHT;
+		boolean drawGlyph = !(blink && !blinkOn);
+		// draw the cursor
+		boolean isCursorCell = (x == cursorX && y == cursorY);
+		boolean cursorVisible = cursorOn && (!cursorBlink || blinkOn) && isCursorCell;
+		// draw the glyph
+		int o = y * GLYPH_HEIGHT * WIDTH + x * GLYPH_WIDTH;
+		for (int gy = 0; gy < GLYPH_HEIGHT; gy++, o += WIDTH) {
+			int horz = drawGlyph ? FONT_GLYPHS[glyphIdx + gy] & 0xFF : 0; // horizontal line
+			boolean cursorRow = cursorVisible && (blockCursorMode || (gy >= GLYPH_HEIGHT - 2));
+			if (cursorRow) {
+				// invert RGB evil type shit (yes this is accurate), hidden blink glyphs still show under it
+				horz = FONT_GLYPHS[glyphIdx + gy] & 0xFF;
+			} else if (underline && gy == GLYPH_HEIGHT - 1) {
+				horz = 0xFF;
+			}
+			int invert = cursorRow ? 0xFFFFFF : 0;
+			// each = 1 in the F16 is a ON (fore)
+			int m = horz * GLYPH_WIDTH;
+			for (int gx = 0; gx < GLYPH_WIDTH; gx++) {
+				int mask = GLYPH_ROW_MASKS[m + gx];
+				pixels[o + gx] = ((foreground & mask) | (background & ~mask)) ^ invert;
+			}
+		}
+	}
+	
+	private static synchronized BufferedImage noSignalScreen() {
+		if (NO_SIGNAL_SCREEN == null) {
+			NO_SIGNAL_SCREEN = noSignalImage();
+		}
+		return NO_SIGNAL_SCREEN;
 	}
 	
 	static final BufferedImage noSignalImage() {
@@ -0,0 +1,209 @@
+package dev.gkvn.cpu.fl32r.emulator.mmio.devs.disk;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import dev.gkvn.cpu.utils.ByteMemorySpace;
+import dev.gkvn.cpu.utils.LongIntHashMap;
+
+/**
+ * Write-back LRU sector cache in front of another store. 
+ * Writes stay in memory until the sector is evicted or the cache is flushed 
+ * (FLUSH command, CPU idle, kill).
+ * 
+ * Synchronized, the async I/O worker and the CPU thread (idle flush) can both get in here.
+ */
+public final class CachedDiskStore implements DiskBackingStore {
+	private static final int SECTOR_SIZE = 512;
+	private static final int NONE = -1;
+	public  static final int MAX_CAPACITY_SECTORS = 1 << 20; // 512 MB
+	
+	private final DiskBackingStore backing;
+	private final int capacity; // in sectors
+	private final ByteMemorySpace sectors; // slot i lives at i * 512
+	private final long[] slotLBA;
+	private final boolean[] dirty;
+	private final LongIntHashMap index; // LBA -> slot
+	// LRU list threaded through the slots, head = most recent
+	private final int[] prev, next;
+	private int head = NONE, tail = NONE;
+	private int used;
+	private int dirtyCount;
+	
+	private long hits, misses, writeBacks;
+	
+	public CachedDiskStore(DiskBackingStore backing, int capacitySectors) {
+		if (capacitySectors <= 0 || capacitySectors > MAX_CAPACITY_SECTORS) {
+			throw new IllegalArgumentException("Cache capacity must be 1 -> " + MAX_CAPACITY_SECTORS + " sectors");
+		}
+		this.backing = backing;
+		this.capacity = capacitySectors;
+		this.sectors = new ByteMemorySpace((long) capacitySectors * SECTOR_SIZE);
+		this.slotLBA = new long[capacitySectors];
+		this.dirty = new boolean[capacitySectors];
+		this.index = new LongIntHashMap(capacitySectors);
+		this.prev = new int[capacitySectors];
+		this.next = new int[capacitySectors];
+	}
+
+	@Override
+	public long size() {
+		return backing.size();
+	}
+
+	@Override
+	public synchronized void read(long position, ByteMemorySpace mem, long index, int len) throws IOException {
+		long lba = position / SECTOR_SIZE;
+		long end = lba + len / SECTOR_SIZE;
+		while (lba < end) {
+			int slot = this.index.get(lba);
+			if (slot != LongIntHashMap.MISSING) {
+				hits++;
+				touch(slot);
+				sectors.copyTo((long) slot * SECTOR_SIZE, mem, index, SECTOR_SIZE);
+				lba++;
+				index += SECTOR_SIZE;
+				continue;
+			}
+			// fetch the whole run of missing sectors with one backing read, straight into the guest
+			long run = lba + 1;
+			while (run < end && this.index.get(run) == LongIntHashMap.MISSING) {
+				run++;
+			}
+			int n = (int) (run - lba);
+			misses += n;
+			backing.read(lba * SECTOR_SIZE, mem, index, n * SECTOR_SIZE);
+			// then keep (the tail of) it, a run larger than the cache would only evict itself
+			for (int i = Math.max(0, n - capacity); i < n; i++) {
+				slot = allocate(lba + i);
+				mem.copyTo(index + (long) i * SECTOR_SIZE, sectors, (long) slot * SECTOR_SIZE, SECTOR_SIZE);
+			}
+			lba = run;
+			index += (long) n * SECTOR_SIZE;
+		}
+	}
+
+	@Override
+	public synchronized void write(long position, ByteMemorySpace mem, long index, int len) throws IOException {
+		long lba = position / SECTOR_SIZE;
+		long end = lba + len / SECTOR_SIZE;
+		for (; lba < end; lba++, index += SECTOR_SIZE) {
+			int slot = this.index.get(lba);
+			if (slot == LongIntHashMap.MISSING) {
+				slot = allocate(lba); // whole sector overwrite, no need to fetch
+			} else {
+				touch(slot);
+			}
+			mem.copyTo(index, sectors, (long) slot * SECTOR_SIZE, SECTOR_SIZE);
+			if (!dirty[slot]) {
+				dirty[slot] = true;
+				dirtyCount++;
+			}
+		}
+	}
+	
+	// a fresh (clean) slot at the head for lba, evicting the least recently used one if full
+	private int allocate(long lba) throws IOException {
+		int slot;
+		if (used < capacity) {
+			slot = used++;
+		} else {
+			slot = tail;
+			if (dirty[slot]) {
+				writeBack(slot);
+			}
+			index.remove(slotLBA[slot]);
+			unlink(slot);
+		}
+		slotLBA[slot] = lba;
+		dirty[slot] = false;
+		index.put(lba, slot);
+		linkFirst(slot);
+		return slot;
+	}
+	
+	private void writeBack(int slot) throws IOException {
+		backing.write(slotLBA[slot] * SECTOR_SIZE, sectors, (long) slot * SECTOR_SIZE, SECTOR_SIZE);
+		dirty[slot] = false;
+		dirtyCount--;
+		writeBacks++;
+	}
+	
+	private void touch(int slot) {
+		if (slot == head) return;
+		unlink(slot);
+		linkFirst(slot);
+	}
+	
+	private void linkFirst(int slot) {
+		prev[slot] = NONE;
+		next[slot] = head;
+		if (head != NONE) prev[head] = slot;
+		head = slot;
+		if (tail == NONE) tail = slot;
+	}
+	
+	private void unlink(int slot) {
+		int p = prev[slot], n = next[slot];
+		if (p != NONE) next[p] = n; else head = n;
+		if (n != NONE) prev[n] = p; else tail = p;
+	}
+
+	/**
+	 * Writes every dirty sector back, then flushes the backing store
+	 */
+	@Override
+	public synchronized void flush() throws IOException {
+		writeBack();
+		backing.flush();
+	}
+	
+	/**
+	 * Writes every dirty sector back (in LBA order) without making it durable,
+	 * cheap enough to run whenever the guest is idle
+	 */
+	public synchronized void writeBack() throws IOException {
+		int count = 0;
+		long[] order = new long[dirtyCount];
+		for (int slot = 0; slot < used; slot++) {
+			if (dirty[slot]) {
+				order[count++] = slotLBA[slot] << 20 | slot; // LBA major, the slot rides in the low 20 bits
+			}
+		}
+		if (count > 0) {
+			Arrays.sort(order, 0, count);
+			for (int i = 0; i < count; i++) {
+				writeBack((int) (order[i] & 0xFFFFF));
+			}
+		}
+	}
+	
+	public synchronized boolean isDirty() {
+		return dirtyCount > 0;
+	}
+	
+	public synchronized long getHits() {
+		return hits;
+	}
+	
+	public synchronized long getMisses() {
+		return misses;
+	}
+	
+	public synchronized long getWriteBacks() {
+		return writeBacks;
+	}
+	
+	public int getCapacitySectors() {
+		return capacity;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			writeBack(); // closing the backing store flushes it
+		} finally {
+			backing.close();
+		}
+	}
+}
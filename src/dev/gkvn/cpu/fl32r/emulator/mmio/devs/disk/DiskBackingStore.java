@@ -0,0 +1,38 @@
+package dev.gkvn.cpu.fl32r.emulator.mmio.devs.disk;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import dev.gkvn.cpu.utils.ByteMemorySpace;
+
+/**
+ * Where the sectors of an emulated disk actually live. Positions are byte offsets into the disk,
+ * the drive only ever hands in whole, in-bounds sectors.
+ */
+public interface DiskBackingStore extends Closeable {
+	/**
+	 * @return disk capacity in bytes
+	 */
+	long size();
+	
+	/**
+	 * Disk [position, position + len) -> mem [index...]
+	 */
+	void read(long position, ByteMemorySpace mem, long index, int len) throws IOException;
+	
+	/**
+	 * mem [index, index + len) -> disk [position...]
+	 */
+	void write(long position, ByteMemorySpace mem, long index, int len) throws IOException;
+	
+	/**
+	 * Makes every completed write durable
+	 */
+	void flush() throws IOException;
+	
+	/**
+	 * Flushes (like {@link #flush()}) and releases the image, nothing else has to be flushed first
+	 */
+	@Override
+	void close() throws IOException;
+}
@@ -0,0 +1,51 @@
+package dev.gkvn.cpu.fl32r.emulator.mmio.devs.disk;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import dev.gkvn.cpu.utils.ByteMemorySpace;
+import dev.gkvn.cpu.utils.DirectByteMemorySpace;
+
+/**
+ * Image file mapped into the host address space, so a command is a memory copy and
+ * the OS page cache does the I/O (no syscall per command). 
+ * 
+ * Mapped in 1 GB chunks, so images past 2 GB work too.
+ */
+public final class MappedDiskStore implements DiskBackingStore {
+	private final DirectByteMemorySpace image;
+	
+	private MappedDiskStore(DirectByteMemorySpace image) {
+		this.image = image;
+	}
+	
+	public static MappedDiskStore open(Path file) throws IOException {
+		return new MappedDiskStore(DirectByteMemorySpace.mapFile(file, Files.size(file)));
+	}
+
+	@Override
+	public long size() {
+		return image.length();
+	}
+
+	@Override
+	public void read(long position, ByteMemorySpace mem, long index, int len) {
+		image.copyTo(position, mem, index, len);
+	}
+
+	@Override
+	public void write(long position, ByteMemorySpace mem, long index, int len) {
+		mem.copyTo(index, image, position, len);
+	}
+
+	@Override
+	public void flush() {
+		image.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		image.close();
+	}
+}
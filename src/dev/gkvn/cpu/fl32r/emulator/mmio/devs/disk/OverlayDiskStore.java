@@ -0,0 +1,197 @@
+package dev.gkvn.cpu.fl32r.emulator.mmio.devs.disk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import dev.gkvn.cpu.utils.ByteMemorySpace;
+
+/**
+ * Copy-on-write overlay over a (shared, never written) base image. 
+ * Written sectors go to a per-instance delta file, reads of untouched sectors fall through to the base.
+ * 
+ * Delta file layout:
+ * <pre>
+ * [0x000] header sector: magic "EVDKCOW1", u32 version, u32 sector size, u64 disk size
+ * [0x200] sector bitmap, 1 bit per disk sector (set = the delta owns it), padded to whole sectors
+ * [data ] sector N lives at data + N * 512 (only ever written sectors get allocated, the rest are holes)
+ * </pre>
+ */
+public final class OverlayDiskStore implements DiskBackingStore {
+	private static final byte[] MAGIC = "EVDKCOW1".getBytes(StandardCharsets.US_ASCII);
+	private static final int VERSION = 1;
+	private static final int SECTOR_SIZE = 512;
+	private static final long BITMAP_OFFSET = SECTOR_SIZE;
+	
+	private final DiskBackingStore base;
+	private final FileChannel delta;
+	private final long size;
+	private final byte[] bitmap;
+	private final long dataOffset;
+	
+	private OverlayDiskStore(DiskBackingStore base, FileChannel delta, byte[] bitmap) {
+		this.base = base;
+		this.delta = delta;
+		this.size = base.size();
+		this.bitmap = bitmap;
+		this.dataOffset = BITMAP_OFFSET + roundToSector(bitmap.length);
+	}
+	
+	/**
+	 * Opens the delta file, or creates an empty one (instant, no data is copied) if it does not exist yet. 
+	 * The overlay owns the base from now on, closing it closes both.
+	 */
+	public static OverlayDiskStore open(Path deltaFile, DiskBackingStore base) throws IOException {
+		if (base.size() % SECTOR_SIZE != 0) {
+			throw new IOException("Base image size not aligned to 512B sectors");
+		}
+		boolean fresh = !Files.exists(deltaFile);
+		FileChannel delta = FileChannel.open(deltaFile, 
+			StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE
+		);
+		try {
+			byte[] bitmap = new byte[(int) ((base.size() / SECTOR_SIZE + 7) / 8)];
+			if (fresh || delta.size() == 0) {
+				writeHeader(delta, base.size());
+			} else {
+				readHeader(delta, base.size());
+				readFully(delta, ByteBuffer.wrap(bitmap), BITMAP_OFFSET);
+			}
+			return new OverlayDiskStore(base, delta, bitmap);
+		} catch (IOException | RuntimeException e) {
+			delta.close();
+			throw e;
+		}
+	}
+	
+	private static void writeHeader(FileChannel delta, long diskSize) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(SECTOR_SIZE);
+		header.put(MAGIC).putInt(VERSION).putInt(SECTOR_SIZE).putLong(diskSize);
+		header.clear();
+		while (header.hasRemaining()) {
+			delta.write(header, header.position());
+		}
+		delta.force(true);
+	}
+	
+	private static void readHeader(FileChannel delta, long diskSize) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(SECTOR_SIZE);
+		readFully(delta, header, 0);
+		header.flip();
+		byte[] magic = new byte[MAGIC.length];
+		header.get(magic);
+		if (!Arrays.equals(magic, MAGIC)) {
+			throw new IOException("Not an EVDK overlay (bad magic)");
+		}
+		int version = header.getInt();
+		int sectorSize = header.getInt();
+		long size = header.getLong();
+		if (version != VERSION || sectorSize != SECTOR_SIZE) {
+			throw new IOException("Unsupported EVDK overlay version " + version + " / sector size " + sectorSize);
+		}
+		if (size != diskSize) {
+			throw new IOException("EVDK overlay was made for a " + size + " byte base, this one is " + diskSize);
+		}
+	}
+	
+	// reads whatever exists, a short file (bitmap never touched) reads as zeroes
+	private static void readFully(FileChannel ch, ByteBuffer dst, long position) throws IOException {
+		while (dst.hasRemaining()) {
+			if (ch.read(dst, position + dst.position()) < 0) break;
+		}
+	}
+
+	@Override
+	public long size() {
+		return size;
+	}
+	
+	/**
+	 * @return number of sectors held by the delta
+	 */
+	public long ownedSectors() {
+		long count = 0;
+		for (byte b : bitmap) {
+			count += Integer.bitCount(b & 0xFF);
+		}
+		return count;
+	}
+
+	@Override
+	public void read(long position, ByteMemorySpace mem, long index, int len) throws IOException {
+		long sector = position / SECTOR_SIZE;
+		long end = sector + len / SECTOR_SIZE;
+		// one transfer per run of sectors living in the same place
+		while (sector < end) {
+			boolean owned = isOwned(sector);
+			long run = sector + 1;
+			while (run < end && isOwned(run) == owned) {
+				run++;
+			}
+			long offset = (sector - position / SECTOR_SIZE) * SECTOR_SIZE;
+			int n = (int) ((run - sector) * SECTOR_SIZE);
+			if (owned) {
+				mem.readFrom(delta, dataOffset + sector * SECTOR_SIZE, index + offset, n);
+			} else {
+				base.read(sector * SECTOR_SIZE, mem, index + offset, n);
+			}
+			sector = run;
+		}
+	}
+
+	@Override
+	public void write(long position, ByteMemorySpace mem, long index, int len) throws IOException {
+		long first = position / SECTOR_SIZE;
+		long last = first + len / SECTOR_SIZE - 1;
+		mem.writeTo(delta, dataOffset + position, index, len);
+		boolean changed = false;
+		for (long s = first; s <= last; s++) {
+			if (!isOwned(s)) {
+				bitmap[(int) (s >>> 3)] |= (byte) (1 << (s & 7));
+				changed = true;
+			}
+		}
+		if (changed) {
+			// the data must be on disk before the bits claiming it, or a crash could leave
+			// a bit pointing at garbage (only paid the first time a sector is written)
+			delta.force(false);
+			int from = (int) (first >>> 3);
+			int to = (int) (last >>> 3) + 1;
+			ByteBuffer bits = ByteBuffer.wrap(bitmap, from, to - from);
+			while (bits.hasRemaining()) {
+				delta.write(bits, BITMAP_OFFSET + bits.position());
+			}
+		}
+	}
+	
+	private boolean isOwned(long sector) {
+		return (bitmap[(int) (sector >>> 3)] & (1 << (sector & 7))) != 0;
+	}
+	
+	private static long roundToSector(long n) {
+		return (n + SECTOR_SIZE - 1) / SECTOR_SIZE * SECTOR_SIZE;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		delta.force(false); // the base is never written
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			try {
+				delta.close();
+			} finally {
+				base.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package dev.gkvn.cpu.fl32r.emulator.mmio.devs.disk;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import dev.gkvn.cpu.utils.ByteMemorySpace;
+
+/**
+ * Plain image file, one positional read/write per command
+ */
+public final class RawDiskStore implements DiskBackingStore {
+	private final FileChannel channel;
+	private final long size;
+	private final boolean readOnly;
+	
+	private RawDiskStore(FileChannel channel, boolean readOnly) throws IOException {
+		this.channel = channel;
+		this.size = channel.size();
+		this.readOnly = readOnly;
+	}
+	
+	public static RawDiskStore open(Path file) throws IOException {
+		return new RawDiskStore(FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE), false);
+	}
+	
+	/**
+	 * Opens the image read-only (writes throw), so any number of instances can share it
+	 */
+	public static RawDiskStore openReadOnly(Path file) throws IOException {
+		return new RawDiskStore(FileChannel.open(file, StandardOpenOption.READ), true);
+	}
+
+	@Override
+	public long size() {
+		return size;
+	}
+
+	@Override
+	public void read(long position, ByteMemorySpace mem, long index, int len) throws IOException {
+		mem.readFrom(channel, position, index, len);
+	}
+
+	@Override
+	public void write(long position, ByteMemorySpace mem, long index, int len) throws IOException {
+		mem.writeTo(channel, position, index, len);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (readOnly) return;
+		channel.force(false);
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,459 @@
+package dev.gkvn.cpu.fl32r.emulator.mmio.devs.disk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import dev.gkvn.cpu.utils.ByteMemorySpace;
+
+/**
+ * Block allocated (and optionally deflate compressed) image, storage is only spent on 
+ * clusters that were ever written with something other than zeroes.
+ * 
+ * File layout:
+ * <pre>
+ * [0x000] header sector: magic "EVDKSPR1", u32 version, u32 flags, u32 cluster size, u32 pad, u64 disk size
+ * [0x200] cluster index, one entry per 64 KB cluster: u64 file offset (0 = never allocated),
+ *         u32 stored length (0 = all zeroes, < cluster size = deflated), u32 slot capacity
+ * [data ] cluster slots
+ * </pre>
+ * Decompressed clusters are kept in a small LRU cache and written back (recompressed) 
+ * on eviction and on flush.
+ * 
+ * A cluster is never overwritten in place: it goes to a free slot (or the end of the file),
+ * the data is forced to disk, and only then its index entry is updated, so a crash leaves either
+ * the old or the new contents. Index entries are committed in batches (one force per 
+ * INDEX_COMMIT_BATCH written back clusters, and on flush). The slot a cluster moved out of is
+ * reused once the index no longer pointing at it is on disk too (at the next commit). Free slots 
+ * are not recorded, they are whatever the index does not point at when the image is opened.
+ */
+public final class SparseDiskStore implements DiskBackingStore {
+	private static final byte[] MAGIC = "EVDKSPR1".getBytes(StandardCharsets.US_ASCII);
+	private static final int VERSION = 1;
+	private static final int FLAG_COMPRESSED = 1 << 0;
+	public  static final int CLUSTER_SIZE = 64 * 1024;
+	private static final int SECTOR_SIZE = 512;
+	private static final long INDEX_OFFSET = SECTOR_SIZE;
+	private static final int INDEX_ENTRY_SIZE = 16;
+	private static final int DEFAULT_CACHED_CLUSTERS = 64; // 4 MB
+	private static final int INDEX_COMMIT_BATCH = 64; // clusters written back per index commit (and force)
+	private static final byte[] ZEROES = new byte[CLUSTER_SIZE];
+	
+	private final FileChannel channel;
+	private final boolean readOnly;
+	private final boolean compressed;
+	private final long size;
+	// cluster index (mirrors the one in the file)
+	private final long[] slotOffset;
+	private final int[] storedLength;
+	private final int[] slotCapacity;
+	private long fileEnd; // where the next slot goes
+	// data area not used by any slot (offset -> length), coalesced
+	private final TreeMap<Long, Long> freeSlots = new TreeMap<>();
+	// slots moved out of (offset, length), the index on disk may still point at them: 
+	// released = their new index entries are not written yet, retiring = written, not forced yet
+	private final List<long[]> releasedSlots = new ArrayList<>();
+	private final List<long[]> retiringSlots = new ArrayList<>();
+	// clusters whose index entry on disk is behind
+	private final BitSet uncommitted = new BitSet();
+	private int uncommittedCount;
+	
+	// decompressed clusters, in access order
+	private final LinkedHashMap<Integer, Cluster> cache = new LinkedHashMap<>(16, 0.75f, true);
+	private final int cacheCapacity;
+	private final byte[] packed = new byte[CLUSTER_SIZE + 1024]; // deflate output can grow a bit
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+	private final Inflater inflater = new Inflater();
+	
+	private SparseDiskStore(FileChannel channel, boolean readOnly, int flags, long size, int cacheCapacity) {
+		this.channel = channel;
+		this.readOnly = readOnly;
+		this.compressed = (flags & FLAG_COMPRESSED) != 0;
+		this.size = size;
+		int clusters = clusterCount(size);
+		this.slotOffset = new long[clusters];
+		this.storedLength = new int[clusters];
+		this.slotCapacity = new int[clusters];
+		this.cacheCapacity = cacheCapacity;
+	}
+	
+	/**
+	 * Creates an empty image of the given capacity, the file only holds the header and the index
+	 */
+	public static SparseDiskStore create(Path file, long capacityBytes, boolean compressed) throws IOException {
+		if (capacityBytes <= 0 || capacityBytes % SECTOR_SIZE != 0) {
+			throw new IllegalArgumentException("Disk capacity must be > 0 and aligned to 512-byte sectors");
+		}
+		FileChannel channel = FileChannel.open(file, 
+			StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE
+		);
+		try {
+			int flags = compressed ? FLAG_COMPRESSED : 0;
+			ByteBuffer header = ByteBuffer.allocate(SECTOR_SIZE);
+			header.put(MAGIC).putInt(VERSION).putInt(flags).putInt(CLUSTER_SIZE).putInt(0).putLong(capacityBytes);
+			header.clear();
+			writeFully(channel, header, 0);
+			SparseDiskStore store = new SparseDiskStore(channel, false, flags, capacityBytes, DEFAULT_CACHED_CLUSTERS);
+			// an all zero index (left as a hole)
+			store.fileEnd = store.dataOffset();
+			writeFully(channel, ByteBuffer.wrap(new byte[1]), store.fileEnd - 1);
+			channel.force(true);
+			return store;
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+	
+	public static SparseDiskStore open(Path file, boolean readOnly) throws IOException {
+		FileChannel channel = readOnly
+			? FileChannel.open(file, StandardOpenOption.READ)
+			: FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(SECTOR_SIZE);
+			readFully(channel, header, 0);
+			header.flip();
+			byte[] magic = new byte[MAGIC.length];
+			header.get(magic);
+			if (!Arrays.equals(magic, MAGIC)) {
+				throw new IOException("Not a sparse EVDK image (bad magic)");
+			}
+			int version = header.getInt();
+			int flags = header.getInt();
+			int clusterSize = header.getInt();
+			header.getInt(); // pad
+			long size = header.getLong();
+			if (version != VERSION || clusterSize != CLUSTER_SIZE) {
+				throw new IOException("Unsupported sparse EVDK version " + version + " / cluster size " + clusterSize);
+			}
+			if (size <= 0 || size % SECTOR_SIZE != 0) {
+				throw new IOException("Invalid sparse EVDK: bad disk size " + size);
+			}
+			// the whole index must be addressable, and actually in the file (before anything is allocated for it)
+			long clusters = (size + CLUSTER_SIZE - 1) / CLUSTER_SIZE;
+			if (clusters > (Integer.MAX_VALUE - SECTOR_SIZE) / INDEX_ENTRY_SIZE
+					|| INDEX_OFFSET + clusters * INDEX_ENTRY_SIZE > channel.size()) {
+				throw new IOException("Invalid sparse EVDK: index for disk size " + size + " does not fit");
+			}
+			SparseDiskStore store = new SparseDiskStore(channel, readOnly, flags, size, DEFAULT_CACHED_CLUSTERS);
+			store.loadIndex();
+			return store;
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+	
+	private void loadIndex() throws IOException {
+		ByteBuffer index = ByteBuffer.allocate(Math.multiplyExact(slotOffset.length, INDEX_ENTRY_SIZE));
+		readFully(channel, index, INDEX_OFFSET);
+		index.flip();
+		this.fileEnd = Math.max(roundToSector(channel.size()), dataOffset());
+		TreeMap<Long, Integer> used = new TreeMap<>();
+		for (int c = 0; c < slotOffset.length; c++) {
+			slotOffset[c] = index.getLong();
+			storedLength[c] = index.getInt();
+			slotCapacity[c] = index.getInt();
+			if (slotOffset[c] == 0 || storedLength[c] == 0) {
+				// a hole, any slot it still names is free (the entry reads as zeroes whatever lands there)
+				slotOffset[c] = 0;
+				storedLength[c] = 0;
+				slotCapacity[c] = 0;
+				continue;
+			}
+			if (storedLength[c] < 0 || storedLength[c] > CLUSTER_SIZE || storedLength[c] > slotCapacity[c]
+					|| slotOffset[c] < dataOffset() || slotOffset[c] % SECTOR_SIZE != 0 
+					|| slotOffset[c] + slotCapacity[c] > fileEnd
+					|| used.put(slotOffset[c], slotCapacity[c]) != null) {
+				throw new IOException("Invalid sparse EVDK: corrupt index entry for cluster " + c);
+			}
+		}
+		// everything between the slots is free
+		long cursor = dataOffset();
+		for (Map.Entry<Long, Integer> slot : used.entrySet()) {
+			if (slot.getKey() < cursor) {
+				throw new IOException("Invalid sparse EVDK: overlapping cluster slots @ " + slot.getKey());
+			}
+			if (slot.getKey() > cursor) {
+				freeSlots.put(cursor, slot.getKey() - cursor);
+			}
+			cursor = slot.getKey() + slot.getValue();
+		}
+		this.fileEnd = cursor; // trailing free space is simply appended over
+	}
+	
+	private long dataOffset() {
+		return INDEX_OFFSET + roundToSector((long) slotOffset.length * INDEX_ENTRY_SIZE);
+	}
+
+	@Override
+	public long size() {
+		return size;
+	}
+	
+	public boolean isCompressed() {
+		return compressed;
+	}
+
+	@Override
+	public void read(long position, ByteMemorySpace mem, long index, int len) throws IOException {
+		while (len > 0) {
+			int c = (int) (position / CLUSTER_SIZE);
+			int offset = (int) (position % CLUSTER_SIZE);
+			int n = Math.min(len, CLUSTER_SIZE - offset);
+			Cluster cluster = cache.get(c);
+			if (cluster == null && storedLength[c] == 0) {
+				// holes read as zeroes, not worth a cache slot
+				mem.copyFrom(ZEROES, 0, index, n);
+			} else {
+				if (cluster == null) {
+					cluster = load(c);
+				}
+				mem.copyFrom(cluster.data, offset, index, n);
+			}
+			position += n;
+			index += n;
+			len -= n;
+		}
+	}
+
+	@Override
+	public void write(long position, ByteMemorySpace mem, long index, int len) throws IOException {
+		if (readOnly) {
+			throw new IOException("Sparse EVDK image is opened read-only");
+		}
+		while (len > 0) {
+			int c = (int) (position / CLUSTER_SIZE);
+			int offset = (int) (position % CLUSTER_SIZE);
+			int n = Math.min(len, CLUSTER_SIZE - offset);
+			Cluster cluster = cache.get(c);
+			if (cluster == null) {
+				cluster = load(c);
+			}
+			mem.copyTo(index, cluster.data, offset, n);
+			cluster.dirty = true;
+			position += n;
+			index += n;
+			len -= n;
+		}
+	}
+	
+	// reads the cluster into the cache, making room first
+	private Cluster load(int c) throws IOException {
+		byte[] data = null;
+		if (cache.size() >= cacheCapacity) {
+			Iterator<Map.Entry<Integer, Cluster>> eldest = cache.entrySet().iterator();
+			Map.Entry<Integer, Cluster> victim = eldest.next();
+			if (victim.getValue().dirty) {
+				store(victim.getKey(), victim.getValue().data);
+				if (uncommittedCount >= INDEX_COMMIT_BATCH) {
+					commitIndex();
+				}
+			}
+			eldest.remove();
+			data = victim.getValue().data; // recycled
+		}
+		if (data == null) {
+			data = new byte[CLUSTER_SIZE];
+		}
+		int length = storedLength[c];
+		if (slotOffset[c] == 0 || length == 0) {
+			Arrays.fill(data, (byte) 0);
+		} else if (length == CLUSTER_SIZE) {
+			readFully(channel, ByteBuffer.wrap(data), slotOffset[c]);
+		} else {
+			readFully(channel, ByteBuffer.wrap(packed, 0, length), slotOffset[c]);
+			inflater.reset();
+			inflater.setInput(packed, 0, length);
+			try {
+				if (inflater.inflate(data) != CLUSTER_SIZE || !inflater.finished()) {
+					throw new IOException("Invalid sparse EVDK: cluster " + c + " does not inflate to 64 KB");
+				}
+			} catch (DataFormatException e) {
+				throw new IOException("Invalid sparse EVDK: cluster " + c + " is corrupt", e);
+			}
+		}
+		Cluster cluster = new Cluster(data);
+		cache.put(c, cluster);
+		return cluster;
+	}
+	
+	// writes the cluster to a new slot, its index entry is written by the next commitIndex()
+	private void store(int c, byte[] data) throws IOException {
+		if (slotOffset[c] != 0) {
+			if (uncommitted.get(c)) {
+				freeSlot(slotOffset[c], slotCapacity[c]); // stored since the last commit, the index on disk never saw it
+			} else {
+				releasedSlots.add(new long[] { slotOffset[c], slotCapacity[c] });
+			}
+		}
+		if (!uncommitted.get(c)) {
+			uncommitted.set(c);
+			uncommittedCount++;
+		}
+		if (Arrays.equals(data, ZEROES)) {
+			slotOffset[c] = 0;
+			storedLength[c] = 0;
+			slotCapacity[c] = 0;
+			return;
+		}
+		byte[] payload = data;
+		int length = CLUSTER_SIZE;
+		if (compressed) {
+			deflater.reset();
+			deflater.setInput(data);
+			deflater.finish();
+			int packedLength = deflater.deflate(packed);
+			// incompressible clusters are stored as is
+			if (deflater.finished() && packedLength < CLUSTER_SIZE) {
+				payload = packed;
+				length = packedLength;
+			}
+		}
+		int capacity = (int) roundToSector(length);
+		long offset = allocateSlot(capacity);
+		writeFully(channel, ByteBuffer.wrap(payload, 0, length), offset);
+		slotOffset[c] = offset;
+		storedLength[c] = length;
+		slotCapacity[c] = capacity;
+	}
+	
+	// the data of the stored clusters first, then the index entries pointing at it
+	private void commitIndex() throws IOException {
+		if (uncommitted.isEmpty()) {
+			return;
+		}
+		channel.force(false); // also makes the entries written by the previous commit durable
+		reclaimRetiringSlots();
+		for (int c = uncommitted.nextSetBit(0); c >= 0; c = uncommitted.nextSetBit(c + 1)) {
+			writeIndexEntry(c);
+		}
+		uncommitted.clear();
+		uncommittedCount = 0;
+		retiringSlots.addAll(releasedSlots);
+		releasedSlots.clear();
+	}
+	
+	// nothing on disk points at them anymore, CALL RIGHT AFTER A FORCE
+	private void reclaimRetiringSlots() {
+		for (long[] slot : retiringSlots) {
+			freeSlot(slot[0], slot[1]);
+		}
+		retiringSlots.clear();
+	}
+	
+	// first fit in the free space, or appended
+	private long allocateSlot(int capacity) {
+		for (Map.Entry<Long, Long> free : freeSlots.entrySet()) {
+			long offset = free.getKey(), length = free.getValue();
+			if (length >= capacity) {
+				freeSlots.remove(offset);
+				if (length > capacity) {
+					freeSlots.put(offset + capacity, length - capacity);
+				}
+				return offset;
+			}
+		}
+		long offset = fileEnd;
+		fileEnd += capacity;
+		return offset;
+	}
+	
+	private void freeSlot(long offset, long length) {
+		Map.Entry<Long, Long> before = freeSlots.floorEntry(offset);
+		if (before != null && before.getKey() + before.getValue() == offset) {
+			freeSlots.remove(before.getKey());
+			offset = before.getKey();
+			length += before.getValue();
+		}
+		Long after = freeSlots.remove(offset + length);
+		if (after != null) {
+			length += after;
+		}
+		if (offset + length == fileEnd) {
+			fileEnd = offset; // appended over
+		} else {
+			freeSlots.put(offset, length);
+		}
+	}
+	
+	private void writeIndexEntry(int c) throws IOException {
+		ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+		entry.putLong(slotOffset[c]).putInt(storedLength[c]).putInt(slotCapacity[c]);
+		entry.flip();
+		writeFully(channel, entry, INDEX_OFFSET + (long) c * INDEX_ENTRY_SIZE);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (readOnly) return;
+		for (Map.Entry<Integer, Cluster> e : cache.entrySet()) {
+			Cluster cluster = e.getValue();
+			if (cluster.dirty) {
+				store(e.getKey(), cluster.data);
+				cluster.dirty = false;
+			}
+		}
+		commitIndex();
+		channel.force(false);
+		reclaimRetiringSlots();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			channel.close();
+			deflater.end();
+			inflater.end();
+		}
+	}
+	
+	private static int clusterCount(long size) {
+		return (int) ((size + CLUSTER_SIZE - 1) / CLUSTER_SIZE);
+	}
+	
+	private static long roundToSector(long n) {
+		return (n + SECTOR_SIZE - 1) / SECTOR_SIZE * SECTOR_SIZE;
+	}
+	
+	private static void readFully(FileChannel ch, ByteBuffer dst, long position) throws IOException {
+		long start = position - dst.position();
+		while (dst.hasRemaining()) {
+			if (ch.read(dst, start + dst.position()) < 0) {
+				throw new IOException("Unexpected end of sparse EVDK image @ " + (start + dst.position()));
+			}
+		}
+	}
+	
+	private static void writeFully(FileChannel ch, ByteBuffer src, long position) throws IOException {
+		long start = position - src.position();
+		while (src.hasRemaining()) {
+			ch.write(src, start + src.position());
+		}
+	}
+	
+	private static final class Cluster {
+		final byte[] data;
+		boolean dirty;
+		
+		Cluster(byte[] data) {
+			this.data = data;
+		}
+	}
+}
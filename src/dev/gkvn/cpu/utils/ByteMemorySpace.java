@@ -1,15 +1,42 @@
 package dev.gkvn.cpu.utils;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
 public class ByteMemorySpace {
-	private static final int CHUNK_SIZE = 1 << 30; // 1 gb per chunk
+	protected static final int CHUNK_SHIFT = 30;
+	protected static final int CHUNK_SIZE = 1 << CHUNK_SHIFT; // 1 gb per chunk
+	// native big-endian word access straight into the chunks (no byte shuffling)
+	private static final VarHandle BE_INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+	// upper bound of a single channel call, keeps the JDK's temporary direct buffers small for heap chunks
+	private static final int MAX_IO_SLICE = 1 << 20;
+	
 	private final byte[][] chunks;
 	private final long length;
+	private WriteObserver observer;
 	
 	public ByteMemorySpace(long size) {
+		this(size, true);
+	}
+	
+	/**
+	 * For implementations that bring their own storage (allocateOnHeap = false), 
+	 * these must override every accessor and window()
+	 */
+	protected ByteMemorySpace(long size, boolean allocateOnHeap) {
 		if (size < 0) {
 			throw new IllegalArgumentException("Size must be >= 0");
 		}
 		this.length = size;
+		if (!allocateOnHeap) {
+			this.chunks = null;
+			return;
+		}
 
 		int numFullChunks = (int) (size / CHUNK_SIZE);
 		int remaining = (int) (size % CHUNK_SIZE);
@@ -34,32 +61,226 @@ public class ByteMemorySpace {
 
 	public byte get(long index) {
 		checkIndex(index);
-		int chunk = (int) (index / CHUNK_SIZE);
-		int offset = (int) (index % CHUNK_SIZE);
-		return chunks[chunk][offset];
+		return chunks[(int) (index >>> CHUNK_SHIFT)][(int) (index & (CHUNK_SIZE - 1))];
 	}
 	
-	public void set32(long index, int value) {
-		checkIndex(index + 3);
+	public void set(long index, byte value) {
+		checkIndex(index);
+		chunks[(int) (index >>> CHUNK_SHIFT)][(int) (index & (CHUNK_SIZE - 1))] = value;
+		notifyWrite(index, 1);
+	}
+	
+	/**
+	 * Reads a big-endian word (4 bytes) starting at index
+	 */
+	public int getInt(long index) {
+		checkRange(index, 4);
+		byte[] chunk = chunks[(int) (index >>> CHUNK_SHIFT)];
+		int offset = (int) (index & (CHUNK_SIZE - 1));
+		if (offset + 4 <= chunk.length) {
+			return (int) BE_INT.get(chunk, offset);
+		}
+		// straddles two chunks
+		return (get(index) & 0xFF) << 24 | (get(index + 1) & 0xFF) << 16 
+			| (get(index + 2) & 0xFF) << 8 | (get(index + 3) & 0xFF);
+	}
+	
+	/**
+	 * Writes a big-endian word (4 bytes) starting at index
+	 */
+	public void setInt(long index, int value) {
+		checkRange(index, 4);
+		byte[] chunk = chunks[(int) (index >>> CHUNK_SHIFT)];
+		int offset = (int) (index & (CHUNK_SIZE - 1));
+		if (offset + 4 <= chunk.length) {
+			BE_INT.set(chunk, offset, value);
+			notifyWrite(index, 4);
+			return;
+		}
+		// straddles two chunks
 		set(index + 0, (byte) ((value >>> 24) & 0xFF));
 		set(index + 1, (byte) ((value >>> 16) & 0xFF));
 		set(index + 2, (byte) ((value >>> 8) & 0xFF));
 		set(index + 3, (byte) (value & 0xFF));
 	}
+	
+	public void set32(long index, int value) {
+		setInt(index, value);
+	}
+	
+	/**
+	 * Bulk copy of [index, index + len) into dst[dstOffset...]
+	 */
+	public void copyTo(long index, byte[] dst, int dstOffset, int len) {
+		checkRange(index, len);
+		while (len > 0) {
+			byte[] chunk = chunks[(int) (index >>> CHUNK_SHIFT)];
+			int offset = (int) (index & (CHUNK_SIZE - 1));
+			int n = Math.min(len, chunk.length - offset);
+			System.arraycopy(chunk, offset, dst, dstOffset, n);
+			index += n;
+			dstOffset += n;
+			len -= n;
+		}
+	}
+	
+	/**
+	 * Bulk copy of src[srcOffset, srcOffset + len) into [index...]
+	 */
+	public void copyFrom(byte[] src, int srcOffset, long index, int len) {
+		checkRange(index, len);
+		long start = index;
+		int total = len;
+		while (len > 0) {
+			byte[] chunk = chunks[(int) (index >>> CHUNK_SHIFT)];
+			int offset = (int) (index & (CHUNK_SIZE - 1));
+			int n = Math.min(len, chunk.length - offset);
+			System.arraycopy(src, srcOffset, chunk, offset, n);
+			index += n;
+			srcOffset += n;
+			len -= n;
+		}
+		if (total > 0) notifyWrite(start, total);
+	}
 
-	public void set(long index, byte value) {
-		checkIndex(index);
-		int chunk = (int) (index / CHUNK_SIZE);
-		int offset = (int) (index % CHUNK_SIZE);
-		chunks[chunk][offset] = value;
+	/**
+	 * Bulk copy of [index, index + len) into dst (from its position, which is advanced)
+	 */
+	public void copyTo(long index, ByteBuffer dst, int len) {
+		checkRange(index, len);
+		while (len > 0) {
+			ByteBuffer window = window(index, len);
+			int n = window.remaining();
+			dst.put(window);
+			index += n;
+			len -= n;
+		}
+	}
+	
+	/**
+	 * Bulk copy of len bytes from src (from its position, which is advanced) into [index...]
+	 */
+	public void copyFrom(ByteBuffer src, long index, int len) {
+		checkRange(index, len);
+		long start = index;
+		int total = len;
+		while (len > 0) {
+			ByteBuffer window = window(index, len);
+			int n = window.remaining();
+			window.put(src.slice(src.position(), n));
+			src.position(src.position() + n);
+			index += n;
+			len -= n;
+		}
+		if (total > 0) notifyWrite(start, total);
+	}
+	
+	/**
+	 * Bulk copy of [index, index + len) into another space at dstIndex
+	 */
+	public void copyTo(long index, ByteMemorySpace dst, long dstIndex, long len) {
+		checkRange(index, len);
+		while (len > 0) {
+			ByteBuffer window = window(index, (int) Math.min(len, Integer.MAX_VALUE));
+			int n = window.remaining();
+			dst.copyFrom(window, dstIndex, n);
+			index += n;
+			dstIndex += n;
+			len -= n;
+		}
+	}
+	
+	/**
+	 * Reads len bytes of the file at filePosition straight into [index...], 
+	 * without staging them in an intermediate array
+	 * 
+	 * @throws EOFException if the file ends before len bytes were read
+	 */
+	public void readFrom(FileChannel channel, long filePosition, long index, int len) throws IOException {
+		checkRange(index, len);
+		long start = index;
+		int total = len;
+		try {
+			while (len > 0) {
+				ByteBuffer window = window(index, Math.min(len, MAX_IO_SLICE));
+				int n = window.remaining();
+				while (window.hasRemaining()) {
+					long at = filePosition + (n - window.remaining());
+					if (channel.read(window, at) < 0) {
+						throw new EOFException("Unexpected end of file @ " + at);
+					}
+				}
+				filePosition += n;
+				index += n;
+				len -= n;
+			}
+		} finally {
+			// even a partial transfer may have changed the range
+			if (total > 0) notifyWrite(start, total);
+		}
+	}
+	
+	/**
+	 * Writes [index, index + len) to the file at filePosition, 
+	 * without staging it in an intermediate array
+	 */
+	public void writeTo(FileChannel channel, long filePosition, long index, int len) throws IOException {
+		checkRange(index, len);
+		while (len > 0) {
+			ByteBuffer window = window(index, Math.min(len, MAX_IO_SLICE));
+			int n = window.remaining();
+			while (window.hasRemaining()) {
+				channel.write(window, filePosition + (n - window.remaining()));
+			}
+			filePosition += n;
+			index += n;
+			len -= n;
+		}
+	}
+	
+	/**
+	 * A buffer over the storage at [index, index + len), cut short at the end of the chunk. 
+	 * Writing through it does not notify the observer, that is up to the caller
+	 */
+	protected ByteBuffer window(long index, int len) {
+		byte[] chunk = chunks[(int) (index >>> CHUNK_SHIFT)];
+		int offset = (int) (index & (CHUNK_SIZE - 1));
+		return ByteBuffer.wrap(chunk, offset, Math.min(len, chunk.length - offset));
 	}
 
 	public long length() {
 		return length;
 	}
+	
+	/**
+	 * Registers the (single) observer that gets notified after every mutation of this space, 
+	 * used to invalidate state derived from the contents (e.g. decoded instructions).
+	 * Must be set before the space is shared with other threads.
+	 * @throws IllegalStateException if another observer is already registered
+	 */
+	public void setWriteObserver(WriteObserver observer) {
+		if (this.observer != null && this.observer != observer) {
+			throw new IllegalStateException("This memory space already has a write observer");
+		}
+		this.observer = observer;
+	}
 
-	private void checkIndex(long index) {
+	protected final void notifyWrite(long index, long len) {
+		if (observer != null) observer.onWrite(index, len);
+	}
+
+	protected final void checkIndex(long index) {
 		if (index >= 0 && index < length) return;
 		throw new IndexOutOfBoundsException("Index " + index + " out of bounds of " + length);
 	}
+	
+	protected final void checkRange(long index, long len) {
+		if (index >= 0 && len >= 0 && index + len <= length) return;
+		throw new IndexOutOfBoundsException("Range [" + index + ", " + (index + len) + ") out of bounds of " + length);
+	}
+	
+	@FunctionalInterface
+	public interface WriteObserver {
+		void onWrite(long index, long length);
+	}
 }
@@ -0,0 +1,186 @@
+package dev.gkvn.cpu.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Off-heap {@link ByteMemorySpace}, backed by direct (or file mapped) buffers of 1 GB each.
+ * 
+ * The contents never live on the Java heap, so a multi-gigabyte guest costs the GC nothing;
+ * several large guests can share a JVM with a small heap.
+ * 
+ * Anonymous memory ({@link #allocate(long)}) still counts against -XX:MaxDirectMemorySize, 
+ * which defaults to the maximum heap size: a guest larger than the heap needs the flag raised 
+ * (e.g. -XX:MaxDirectMemorySize=8g), or a file mapping ({@link #mapFile(Path, long)}), which is not
+ * limited by it. Either way the memory is only given back to the OS once the space is garbage collected.
+ */
+public class DirectByteMemorySpace extends ByteMemorySpace implements Closeable {
+	private final ByteBuffer[] chunks; // big-endian, like the CPU
+	private final FileChannel channel; // null unless file backed
+	
+	private DirectByteMemorySpace(long size, FileChannel channel) throws IOException {
+		super(size, false);
+		this.channel = channel;
+		int numFullChunks = (int) (size / CHUNK_SIZE);
+		int remaining = (int) (size % CHUNK_SIZE);
+		int totalChunks = remaining > 0 ? numFullChunks + 1 : numFullChunks;
+		
+		this.chunks = new ByteBuffer[totalChunks];
+		for (int i = 0; i < totalChunks; i++) {
+			int chunkSize = (i < numFullChunks) ? CHUNK_SIZE : remaining;
+			chunks[i] = (channel == null)
+				? ByteBuffer.allocateDirect(chunkSize)
+				: channel.map(FileChannel.MapMode.READ_WRITE, (long) i * CHUNK_SIZE, chunkSize);
+		}
+	}
+	
+	/**
+	 * Allocates zeroed, anonymous off-heap memory
+	 * @throws OutOfMemoryError if the direct memory limit is too low for size (see the class notes)
+	 */
+	public static DirectByteMemorySpace allocate(long size) {
+		try {
+			return new DirectByteMemorySpace(size, null);
+		} catch (IOException e) {
+			throw new RuntimeException("This is not supposed to happen!", e); // no file involved
+		} catch (OutOfMemoryError e) {
+			OutOfMemoryError error = new OutOfMemoryError(
+				"Cannot allocate " + size + " bytes of off-heap guest memory (" + e.getMessage() + "), "
+				+ "raise -XX:MaxDirectMemorySize (defaults to the max heap size) or map a file instead"
+			);
+			error.initCause(e);
+			throw error;
+		}
+	}
+	
+	/**
+	 * Maps a file as the memory (created/grown to size if needed), so the contents persist
+	 * across runs and are paged by the OS
+	 */
+	public static DirectByteMemorySpace mapFile(Path file, long size) throws IOException {
+		FileChannel channel = FileChannel.open(file, 
+			StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE
+		);
+		try {
+			if (channel.size() < size) {
+				channel.write(ByteBuffer.wrap(new byte[1]), size - 1); // grow (sparse)
+			}
+			return new DirectByteMemorySpace(size, channel);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+	
+	@Override
+	public byte get(long index) {
+		checkIndex(index);
+		return chunks[(int) (index >>> CHUNK_SHIFT)].get((int) (index & (CHUNK_SIZE - 1)));
+	}
+	
+	@Override
+	public void set(long index, byte value) {
+		checkIndex(index);
+		chunks[(int) (index >>> CHUNK_SHIFT)].put((int) (index & (CHUNK_SIZE - 1)), value);
+		notifyWrite(index, 1);
+	}
+	
+	@Override
+	public int getInt(long index) {
+		checkRange(index, 4);
+		ByteBuffer chunk = chunks[(int) (index >>> CHUNK_SHIFT)];
+		int offset = (int) (index & (CHUNK_SIZE - 1));
+		if (offset + 4 <= chunk.capacity()) {
+			return chunk.getInt(offset);
+		}
+		// straddles two chunks
+		return (get(index) & 0xFF) << 24 | (get(index + 1) & 0xFF) << 16 
+			| (get(index + 2) & 0xFF) << 8 | (get(index + 3) & 0xFF);
+	}
+	
+	@Override
+	public void setInt(long index, int value) {
+		checkRange(index, 4);
+		ByteBuffer chunk = chunks[(int) (index >>> CHUNK_SHIFT)];
+		int offset = (int) (index & (CHUNK_SIZE - 1));
+		if (offset + 4 <= chunk.capacity()) {
+			chunk.putInt(offset, value);
+			notifyWrite(index, 4);
+			return;
+		}
+		// straddles two chunks
+		set(index + 0, (byte) ((value >>> 24) & 0xFF));
+		set(index + 1, (byte) ((value >>> 16) & 0xFF));
+		set(index + 2, (byte) ((value >>> 8) & 0xFF));
+		set(index + 3, (byte) (value & 0xFF));
+	}
+	
+	@Override
+	public void copyTo(long index, byte[] dst, int dstOffset, int len) {
+		checkRange(index, len);
+		while (len > 0) {
+			ByteBuffer chunk = chunks[(int) (index >>> CHUNK_SHIFT)];
+			int offset = (int) (index & (CHUNK_SIZE - 1));
+			int n = Math.min(len, chunk.capacity() - offset);
+			chunk.get(offset, dst, dstOffset, n);
+			index += n;
+			dstOffset += n;
+			len -= n;
+		}
+	}
+	
+	@Override
+	public void copyFrom(byte[] src, int srcOffset, long index, int len) {
+		checkRange(index, len);
+		long start = index;
+		int total = len;
+		while (len > 0) {
+			ByteBuffer chunk = chunks[(int) (index >>> CHUNK_SHIFT)];
+			int offset = (int) (index & (CHUNK_SIZE - 1));
+			int n = Math.min(len, chunk.capacity() - offset);
+			chunk.put(offset, src, srcOffset, n);
+			index += n;
+			srcOffset += n;
+			len -= n;
+		}
+		if (total > 0) notifyWrite(start, total);
+	}
+	
+	@Override
+	protected ByteBuffer window(long index, int len) {
+		ByteBuffer chunk = chunks[(int) (index >>> CHUNK_SHIFT)];
+		int offset = (int) (index & (CHUNK_SIZE - 1));
+		// a view, so channel I/O goes straight in and out of the off-heap memory
+		return chunk.slice(offset, Math.min(len, chunk.capacity() - offset));
+	}
+	
+	public boolean isFileBacked() {
+		return channel != null;
+	}
+	
+	/**
+	 * Writes back the dirty pages of a file backed memory (no-op otherwise)
+	 */
+	public void flush() {
+		if (channel == null) return;
+		for (ByteBuffer chunk : chunks) {
+			((MappedByteBuffer) chunk).force();
+		}
+	}
+	
+	/**
+	 * Flushes and releases the backing file. Anonymous memory is returned to the OS once 
+	 * this object is collected (direct buffers can not be freed explicitly on this JDK).
+	 */
+	@Override
+	public void close() throws IOException {
+		if (channel == null) return;
+		flush();
+		channel.close();
+	}
+}
@@ -0,0 +1,111 @@
+package dev.gkvn.cpu.utils;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing (linear probing) long -> int map, no boxing and no per-entry objects. 
+ * Long.MIN_VALUE can not be used as a key.
+ */
+public final class LongIntHashMap {
+	private static final long EMPTY = Long.MIN_VALUE;
+	public static final int MISSING = -1;
+	
+	private long[] keys;
+	private int[] values;
+	private int mask;
+	private int size;
+	
+	public LongIntHashMap(int expectedSize) {
+		int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1; // load factor <= 0.5
+		this.keys = new long[capacity];
+		this.values = new int[capacity];
+		this.mask = capacity - 1;
+		Arrays.fill(keys, EMPTY);
+	}
+	
+	/**
+	 * @return the value, or MISSING
+	 */
+	public int get(long key) {
+		for (int i = slot(key);; i = (i + 1) & mask) {
+			long k = keys[i];
+			if (k == key) return values[i];
+			if (k == EMPTY) return MISSING;
+		}
+	}
+	
+	public void put(long key, int value) {
+		if (key == EMPTY) {
+			throw new IllegalArgumentException("Long.MIN_VALUE is reserved");
+		}
+		int i = slot(key);
+		for (;; i = (i + 1) & mask) {
+			long k = keys[i];
+			if (k == key) {
+				values[i] = value;
+				return;
+			}
+			if (k == EMPTY) break;
+		}
+		keys[i] = key;
+		values[i] = value;
+		if (++size * 2 > keys.length) {
+			grow();
+		}
+	}
+	
+	/**
+	 * @return the removed value, or MISSING
+	 */
+	public int remove(long key) {
+		int i = slot(key);
+		for (;; i = (i + 1) & mask) {
+			long k = keys[i];
+			if (k == EMPTY) return MISSING;
+			if (k == key) break;
+		}
+		int removed = values[i];
+		size--;
+		// backward shift, so probe chains stay unbroken without tombstones
+		for (int j = (i + 1) & mask;; j = (j + 1) & mask) {
+			long k = keys[j];
+			if (k == EMPTY) break;
+			int home = slot(k);
+			// move k into the hole unless its home lies cyclically in (i, j]
+			if (((j - home) & mask) >= ((j - i) & mask)) {
+				keys[i] = k;
+				values[i] = values[j];
+				i = j;
+			}
+		}
+		keys[i] = EMPTY;
+		return removed;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public void clear() {
+		Arrays.fill(keys, EMPTY);
+		size = 0;
+	}
+	
+	private int slot(long key) {
+		long h = key * 0x9E3779B97F4A7C15L; // fibonacci hashing, sequential LBAs spread out
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+	
+	private void grow() {
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		keys = new long[oldKeys.length << 1];
+		values = new int[oldKeys.length << 1];
+		mask = keys.length - 1;
+		Arrays.fill(keys, EMPTY);
+		size = 0;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != EMPTY) put(oldKeys[i], oldValues[i]);
+		}
+	}
+}